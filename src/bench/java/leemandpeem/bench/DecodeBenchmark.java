@@ -0,0 +1,91 @@
+package leemandpeem.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UView Folder Reader: decoding a whole frame ({@code readDat}, with the header
+ * already in the index, as when a folder is reopened), with and without binning,
+ * and parsing a header and its LEEM block alone ({@code readHeader}, as for a new
+ * file or a tag condition). The files are read from the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+	private static final int FILES = 16;
+
+	private static final MethodHandle LOAD_INDEX =
+			Internals.method("UViewIndex", "load", File.class);
+	private static final MethodHandle HEADER =
+			Internals.method("UViewIndex", "header", File.class);
+	private static final MethodHandle REGION =
+			Internals.method("UView_Folder_Reader$Region", "of", int.class, int.class, int[].class, int.class);
+	private static final MethodHandle READ_DAT =
+			Internals.method("UView_Folder_Reader", "readDat", File.class,
+					Internals.type("UViewIndex"), Internals.type("UView_Folder_Reader$Region"));
+	private static final MethodHandle READ_HEADER =
+			Internals.method("UView_Folder_Reader", "readHeader", File.class);
+
+	@Param({"512", "1024"})
+	public int size;
+
+	@Param({"1", "2"})
+	public int bin;
+
+	private File   folder;
+	private File[] files;
+	private Object index;
+	private Object region;
+	private int    next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		folder = SyntheticData.folder(FILES, size, size);
+		files  = folder.listFiles();
+		java.util.Arrays.sort(files);
+		index  = LOAD_INDEX.invoke(folder);
+		for (File f : files) HEADER.invoke(index, f);
+		region = REGION.invoke(size, size, (int[]) null, bin);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.delete(folder);
+	}
+
+	private File nextFile() {
+		File f = files[next];
+		next = (next + 1) % files.length;
+		return f;
+	}
+
+	@Benchmark
+	public Object readDat() throws Throwable {
+		return READ_DAT.invoke(nextFile(), index, region);
+	}
+
+	@Benchmark
+	public Object readHeader() throws Throwable {
+		return READ_HEADER.invoke(nextFile());
+	}
+}
@@ -0,0 +1,116 @@
+package leemandpeem.bench;
+
+import ij.ImageStack;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Plot Intensity vs Tag, per slice: compiling and evaluating the X and Y formulas
+ * from their text ({@code UViewFormula.compile} and {@code eval}) and looking up
+ * a tag value ({@code tagValue}); per stack, evaluating a compiled Y formula over
+ * the columns of all slices ({@code UViewFormula.eval}), and building the tag
+ * table from the slice labels ({@code fromLabels}), which is what the tag
+ * extraction costs for stacks not opened by the UView readers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaBenchmark {
+
+	private static final int SLICES = 200;
+
+	private static final List<String> X  = Arrays.asList("x");
+	private static final List<String> YT = Arrays.asList("y", "t");
+
+	private static final MethodHandle TAG_VALUE =
+			Internals.method("plotIntensityVsTag", "tagValue",
+					Internals.type("UViewTagTable"), String.class, int.class);
+	private static final MethodHandle FROM_LABELS =
+			Internals.method("UViewTagTable", "fromLabels", ImageStack.class);
+	private static final MethodHandle COMPILE =
+			Internals.method("UViewFormula", "compile", String.class, List.class);
+	private static final MethodHandle EVAL =
+			Internals.method("UViewFormula", "eval", double[].class);
+	private static final MethodHandle EVAL_COLUMNS =
+			Internals.method("UViewFormula", "eval", double[][].class, int.class);
+
+	private ImageStack stack;
+	private Object     table;
+	private int        slice;
+	private Object     compiled;
+	private double[][] columns;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		stack = new ImageStack(8, 8);
+		for (int i = 0; i < SLICES; i++)
+			stack.addSlice(String.format("img%04d.dat%n"
+					+ "Date=2026-03-14 10:22:05%n"
+					+ "Start Voltage (V)=%.4g%n"
+					+ "Sample Temp. (K)=312.5%n"
+					+ "FOV=6.25 um%n"
+					+ "Camera Exposure=0.5000 s%n"
+					+ "Gauge (Torr)=1.200e-09%n"
+					+ "Energy (eV)=%.3f%n"
+					+ "M4b=%d%n", i, 4.25 + 0.01 * i, 520 + 0.5 * i, 5000 + i),
+					new short[64]);
+		table = FROM_LABELS.invoke(stack);
+		compiled = COMPILE.invoke("log((y - 100) / t * 1e4)", YT);
+		columns  = new double[2][SLICES];
+		for (int i = 0; i < SLICES; i++) {
+			columns[0][i] = 1234.5 + i;
+			columns[1][i] = 5000.0 + i;
+		}
+	}
+
+	private int nextSlice() {
+		slice = slice % SLICES + 1;
+		return slice;
+	}
+
+	@Benchmark
+	public double evalX() throws Throwable {
+		Object f = COMPILE.invoke("x", X);
+		return (double) EVAL.invoke(f, new double[] {nextSlice()});
+	}
+
+	@Benchmark
+	public double evalY() throws Throwable {
+		Object f = COMPILE.invoke("(y - 100) / t * 1e4", YT);
+		return (double) EVAL.invoke(f, new double[] {1234.5, 5000.0 + nextSlice()});
+	}
+
+	/** One operation evaluates the formula for all {@value #SLICES} slices. */
+	@Benchmark
+	public double[] evalYColumns() throws Throwable {
+		return (double[]) EVAL_COLUMNS.invoke(compiled, columns, SLICES);
+	}
+
+	@Benchmark
+	public double tagValue() throws Throwable {
+		return (double) TAG_VALUE.invoke(table, "Energy (eV)", nextSlice());
+	}
+
+	@Benchmark
+	public Object fromLabels() throws Throwable {
+		return FROM_LABELS.invoke(stack);
+	}
+}
@@ -0,0 +1,36 @@
+package leemandpeem.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the plugin classes from the benchmarks. The plugins live in the
+ * default package, which cannot be imported, and JMH needs the benchmarks in a
+ * named one; the methods under test are therefore looked up once, by name, as
+ * method handles held in static final fields, which the JIT treats as constants.
+ */
+final class Internals {
+
+	private Internals() {
+	}
+
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** A handle on the static or instance method {@code name} of {@code className}, accessible or not. */
+	static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+		try {
+			Method m = type(className).getDeclaredMethod(name, parameterTypes);
+			m.setAccessible(true);
+			return MethodHandles.lookup().unreflect(m);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
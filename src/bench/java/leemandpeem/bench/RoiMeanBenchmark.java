@@ -0,0 +1,117 @@
+package leemandpeem.bench;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ROI means over a 16-bit stack, as Plot Intensity vs Tag and Quick Normalize take
+ * them: with {@link ImageStatistics}, selecting every slice and ROI in turn (the
+ * fallback path), and with UViewRoiMeans, one pass over the pixels of each slice,
+ * on one thread or on all cores, and in ROI grid mode (summed-area table).
+ * One operation is one pass over the whole stack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoiMeanBenchmark {
+
+	private static final int SIZE = 512;
+
+	private static final MethodHandle MEASURE = Internals.method("UViewRoiMeans", "measure",
+			ImagePlus.class, List.class, boolean.class, boolean.class, IntConsumer.class);
+
+	@Param({"100"})
+	public int slices;
+
+	@Param({"1", "4"})
+	public int rois;
+
+	/** Rectangles, ovals, or a grid of 32 x 32 rectangles covering the frame (rois is then ignored). */
+	@Param({"rectangle", "oval", "grid"})
+	public String shape;
+
+	private ImagePlus imp;
+	private Roi[]     roi;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int s = 0; s < slices; s++) {
+			short[] pixels = new short[SIZE * SIZE];
+			for (int i = 0; i < pixels.length; i++) pixels[i] = (short) (1000 + random.nextInt(4000));
+			stack.addSlice("slice " + (s + 1), pixels);
+		}
+		imp = new ImagePlus("bench", stack);
+		if (shape.equals("grid")) {
+			int cell = SIZE / 32;
+			roi = new Roi[32 * 32];
+			for (int r = 0; r < roi.length; r++)
+				roi[r] = new Roi(r % 32 * cell, r / 32 * cell, cell, cell);
+			return;
+		}
+		roi = new Roi[rois];
+		for (int r = 0; r < rois; r++) {
+			int x = 40 + 100 * r, y = 60 + 80 * r;
+			roi[r] = shape.equals("oval") ? new OvalRoi(x, y, 96, 64) : new Roi(x, y, 96, 64);
+		}
+	}
+
+	@Benchmark
+	public double[][] roiMeans() {
+		double[][] means = new double[roi.length][slices];
+		for (int i = 1; i <= slices; i++) {
+			imp.setSliceWithoutUpdate(i);
+			ImageProcessor ip = imp.getProcessor();
+			for (int r = 0; r < roi.length; r++) {
+				ip.setRoi(roi[r]);
+				means[r][i - 1] = ImageStatistics.getStatistics(ip, Measurements.MEAN,
+						imp.getCalibration()).mean;
+			}
+		}
+		return means;
+	}
+
+	@Benchmark
+	public double[][] roiMeansOnePass() throws Throwable {
+		return (double[][]) MEASURE.invoke(imp, Arrays.asList(roi), false, false, (IntConsumer) i -> { });
+	}
+
+	@Benchmark
+	public double[][] roiMeansGrid() throws Throwable {
+		return (double[][]) MEASURE.invoke(imp, Arrays.asList(roi), false, true, (IntConsumer) i -> { });
+	}
+
+	@Benchmark
+	public double[][] roiMeansParallel() throws Throwable {
+		return (double[][]) MEASURE.invoke(imp, Arrays.asList(roi), true, false, (IntConsumer) i -> { });
+	}
+}
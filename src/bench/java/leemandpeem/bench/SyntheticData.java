@@ -0,0 +1,40 @@
+package leemandpeem.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+
+/**
+ * Synthetic UKSOFT2001 files for the benchmarks, written by UViewDatasetGenerator:
+ * version 8 files with a 256-byte LEEM block holding the usual tags (voltages,
+ * field of view, pressures, camera exposure) and a simulated PEEM image as pixels.
+ */
+final class SyntheticData {
+
+	private static final MethodHandle GENERATE = Internals.method("UViewDatasetGenerator", "generate",
+			File.class, int.class, int.class, int.class, boolean.class, int.class, boolean.class);
+
+	private SyntheticData() {
+	}
+
+	/** Writes {@code n} files of {@code width} x {@code height} into a new temporary folder. */
+	static File folder(int n, int width, int height) throws IOException {
+		File dir = Files.createTempDirectory("uview-bench").toFile();
+		try {
+			GENERATE.invoke(dir, n, width, height, false, 1, false);
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IOException(e);
+		}
+		return dir;
+	}
+
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files) f.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,66 @@
+package leemandpeem.bench;
+
+import io.scif.Format;
+import io.scif.Metadata;
+import io.scif.Parser;
+import io.scif.SCIFIO;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scijava.io.location.FileLocation;
+
+/**
+ * The SCIFIO UView reader: parsing the metadata of a single file
+ * ({@code UView_reader.UKFormat.Parser.typedParse}, through a fresh parser, as
+ * SCIFIO does when a file is opened).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UViewReaderBenchmark {
+
+	private SCIFIO       scifio;
+	private Format       format;
+	private File         folder;
+	private FileLocation location;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setUp() throws Exception {
+		scifio = new SCIFIO();
+		format = scifio.format().getFormatFromClass(
+				(Class<Format>) Internals.type("UView_reader$UKFormat"));
+		folder = SyntheticData.folder(1, 1024, 1024);
+		location = new FileLocation(folder.listFiles()[0]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		scifio.getContext().dispose();
+		SyntheticData.delete(folder);
+	}
+
+	@Benchmark
+	public Object typedParse() throws Exception {
+		Parser parser = format.createParser();
+		Metadata meta = parser.parse(location);
+		meta.close();
+		return meta;
+	}
+}
@@ -0,0 +1,508 @@
+/**
+ * UViewCsvTags — the per-image tags of the companion CSV file of a UView folder.
+ *
+ * The CSV is the first file in the folder ending in .csv whose name does not contain
+ * "meta" (the DEMETER acquisition system writes one row per image, with the photon
+ * energy, flux monitors and other beamline readings). It is read in one streaming
+ * pass: lines are split in a reused char buffer and numbers are parsed straight from
+ * it into one double array per column, so a beamline log of 100k rows costs no
+ * String per cell. Every numeric column is imported, or only those listed in the
+ * {@value #PREF_COLUMNS} preference; the "Energy" column becomes the
+ * "Energy (eV)" tag.
+ *
+ * Rows are matched to the .dat files by a file-name column if there is one, else by
+ * a timestamp column (nearest row to the acquisition time in the .dat header), and
+ * otherwise by position, both sorted by name. Only the matched rows are kept.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.IJ;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+public class UViewCsvTags {
+
+	/** Comma-separated CSV columns to import; empty for all numeric columns. */
+	static final String PREF_COLUMNS = "LEEMandPEEM.csv.columns";
+
+	/** No CSV: no file has tags. */
+	static final UViewCsvTags NONE = new UViewCsvTags(new String[0], new double[0][], new HashMap<>());
+
+	private static final String[] FILE_COLUMNS = {"file", "filename", "file name", "file_name", "image name"};
+	private static final String[] TIME_COLUMNS = {"timestamp", "time stamp", "datetime", "date time", "date", "time"};
+
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final String[]   columns;   // tag names
+	private final double[][] data;      // [column][slot], NaN where the cell was empty
+	private final Map<String, Integer> slots;   // .dat file name -> slot
+
+	private UViewCsvTags(String[] columns, double[][] data, Map<String, Integer> slots) {
+		this.columns = columns;
+		this.data    = data;
+		this.slots   = slots;
+	}
+
+	/** The imported tag names, in CSV order. */
+	public List<String> columns() {
+		return Arrays.asList(columns);
+	}
+
+	/** Number of .dat files that have a CSV row. */
+	public int size() {
+		return slots.size();
+	}
+
+	/** The CSV tags of {@code fileName} as label text, or null if it has no row. */
+	public Map<String, String> tags(String fileName) {
+		Integer slot = slots.get(fileName);
+		if (slot == null) return null;
+		Map<String, String> tags = new LinkedHashMap<>();
+		for (int c = 0; c < columns.length; c++) {
+			double v = data[c][slot];
+			if (!Double.isNaN(v)) tags.put(columns[c], format(v));
+		}
+		return tags;
+	}
+
+	/** The CSV tags of {@code fileName} as numbers, or null if it has no row. */
+	public Map<String, Double> values(String fileName) {
+		Integer slot = slots.get(fileName);
+		if (slot == null) return null;
+		Map<String, Double> values = new LinkedHashMap<>();
+		for (int c = 0; c < columns.length; c++) {
+			double v = data[c][slot];
+			if (!Double.isNaN(v)) values.put(columns[c], v);
+		}
+		return values;
+	}
+
+	/** Integers without a decimal point, other values in the shortest form that reads back exactly. */
+	static String format(double v) {
+		if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+		return Double.toString(v);
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Reads the companion CSV of {@code folder}, if any, with the columns chosen in
+	 * {@link #PREF_COLUMNS}, and matches its rows to {@code sortedFiles}. The
+	 * acquisition times needed for a timestamp join are taken from {@code index}.
+	 * Returns {@link #NONE} if there is no CSV or it cannot be read.
+	 */
+	static UViewCsvTags load(File folder, File[] sortedFiles, UViewIndex index) {
+		File[] csvFiles = folder.listFiles((d, name) -> {
+			String lower = name.toLowerCase();
+			return lower.endsWith(".csv") && !lower.contains("meta");
+		});
+		if (csvFiles == null || csvFiles.length == 0) return NONE;
+		Arrays.sort(csvFiles);
+		File csv = csvFiles[0];
+		try {
+			return read(csv, sortedFiles, index, ij.Prefs.get(PREF_COLUMNS, ""));
+		} catch (IOException e) {
+			IJ.log("Companion CSV " + csv.getName() + " could not be read — " + e.getMessage());
+			return NONE;
+		}
+	}
+
+	/**
+	 * Reads {@code csv} and matches its rows to {@code sortedFiles}.
+	 *
+	 * @param wanted comma-separated column names (or tag names) to import, case
+	 *               insensitive; empty for all numeric columns
+	 */
+	static UViewCsvTags read(File csv, File[] sortedFiles, UViewIndex index, String wanted)
+			throws IOException {
+		Ingest in;
+		try (Reader r = new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8)) {
+			in = new Ingest(r, wanted);
+			in.run();
+		}
+		if (in.rows == 0) return NONE;
+
+		// row of each file, by the best key the CSV has
+		int[] rowOf = null;
+		String by = null;
+		if (in.names != null) {
+			rowOf = joinByName(in.names, in.rows, sortedFiles);
+			if (rowOf != null) by = "file name";
+		}
+		if (rowOf == null && in.times != null && index != null) {
+			rowOf = joinByTime(in.times, in.rows, sortedFiles, index);
+			if (rowOf != null) by = "timestamp";
+		}
+		if (rowOf == null) {
+			rowOf = new int[sortedFiles.length];
+			for (int i = 0; i < rowOf.length; i++) rowOf[i] = i < in.rows ? i : -1;
+			by = "position";
+		}
+
+		// keep the numeric columns, and of those only the matched rows
+		List<String>   names = new ArrayList<>();
+		List<double[]> cols  = new ArrayList<>();
+		Map<String, Integer> slots = new HashMap<>();
+		for (int i = 0; i < sortedFiles.length; i++)
+			if (rowOf[i] >= 0) slots.put(sortedFiles[i].getName(), slots.size());
+		for (int c = 0; c < in.header.length; c++) {
+			if (in.columns[c] == null) continue;
+			double[] col = new double[slots.size()];
+			int k = 0;
+			for (int i = 0; i < sortedFiles.length; i++)
+				if (rowOf[i] >= 0) col[k++] = in.columns[c][rowOf[i]];
+			names.add(in.header[c]);
+			cols.add(col);
+		}
+
+		IJ.log("Companion CSV " + csv.getName() + ": " + in.rows + " rows, " + names.size()
+				+ " numeric columns, " + slots.size() + " of " + sortedFiles.length
+				+ " files matched by " + by + ".");
+		return new UViewCsvTags(names.toArray(new String[0]), cols.toArray(new double[0][]), slots);
+	}
+
+	/**
+	 * Row of each file whose name (with or without path and .dat) is in the file-name
+	 * column. Returns null if no file is listed.
+	 */
+	private static int[] joinByName(String[] names, int rows, File[] files) {
+		Map<String, Integer> rowOfName = new HashMap<>();
+		for (int r = 0; r < rows; r++)
+			if (names[r] != null) rowOfName.put(baseName(names[r]), r);
+		int[] rowOf = new int[files.length];
+		int matched = 0;
+		for (int i = 0; i < files.length; i++) {
+			Integer r = rowOfName.get(baseName(files[i].getName()));
+			rowOf[i] = r != null ? r : -1;
+			if (r != null) matched++;
+		}
+		return matched > 0 ? rowOf : null;
+	}
+
+	private static String baseName(String name) {
+		int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+		String base = name.substring(slash + 1);
+		return base.toLowerCase().endsWith(".dat") ? base.substring(0, base.length() - 4) : base;
+	}
+
+	/**
+	 * Row with the timestamp nearest to the acquisition time of each file, if it is
+	 * no further away than the typical row spacing (at least 2 s). Returns null if
+	 * fewer than half of the files match, e.g. when the clocks or time zones differ.
+	 */
+	private static int[] joinByTime(long[] times, int rows, File[] files, UViewIndex index) {
+		Integer[] order = new Integer[rows];
+		int n = 0;
+		for (int r = 0; r < rows; r++)
+			if (times[r] != Long.MIN_VALUE) order[n++] = r;
+		if (n == 0) return null;
+		Arrays.sort(order, 0, n, (a, b) -> Long.compare(times[a], times[b]));
+		long[] sorted = new long[n];
+		for (int k = 0; k < n; k++) sorted[k] = times[order[k]];
+
+		long[] gaps = new long[Math.max(1, n - 1)];
+		for (int k = 1; k < n; k++) gaps[k - 1] = sorted[k] - sorted[k - 1];
+		Arrays.sort(gaps);
+		long tolerance = Math.max(2000, gaps[gaps.length / 2]);
+
+		int[] rowOf = new int[files.length];
+		int matched = 0;
+		for (int i = 0; i < files.length; i++) {
+			rowOf[i] = -1;
+			long t;
+			try {
+				UView_Folder_Reader.FrameHeader h = index.header(files[i]);
+				if (h.time == 0) continue;
+				t = UViewLEEMData.fileTime(h.time).toEpochMilli();
+			} catch (IOException e) {
+				continue;
+			}
+			int k = Arrays.binarySearch(sorted, t);
+			if (k < 0) {
+				k = -k - 1;
+				if (k == n || (k > 0 && t - sorted[k - 1] <= sorted[k] - t)) k--;
+			}
+			if (Math.abs(sorted[k] - t) <= tolerance) {
+				rowOf[i] = order[k];
+				matched++;
+			}
+		}
+		return 2 * matched >= files.length ? rowOf : null;
+	}
+
+	// -------------------------------------------------------------------------
+
+	/** One streaming pass over a CSV file. */
+	private static final class Ingest {
+		final Reader in;
+		final Set<String> wanted = new HashSet<>();
+		final char[] buf = new char[1 << 16];
+		int pos, len;
+
+		char[] line = new char[256];
+		int lineLen;
+		int[] cellFrom = new int[64], cellTo = new int[64];
+		int nCells;
+
+		char delimiter;
+		boolean decimalComma;   // ',' as well as '.' before the fraction
+		String[]   header;
+		double[][] columns;   // null for columns that are not imported or not numeric
+		String[]   names;     // file-name column, or null
+		long[]     times;     // timestamp column (epoch ms, Long.MIN_VALUE if unreadable), or null
+		int nameColumn = -1, timeColumn = -1;
+		int rows;
+		boolean ok;
+
+		Ingest(Reader in, String wanted) {
+			this.in = in;
+			for (String w : wanted.split(","))
+				if (!w.trim().isEmpty()) this.wanted.add(w.trim().toLowerCase());
+		}
+
+		void run() throws IOException {
+			if (!nextLine()) return;
+			int start = lineLen > 0 && line[0] == '\uFEFF' ? 1 : 0;   // BOM, added by Excel
+			int semicolons = 0, commas = 0, tabs = 0;
+			for (int i = start; i < lineLen; i++) {
+				if (line[i] == ';') semicolons++;
+				else if (line[i] == ',') commas++;
+				else if (line[i] == '\t') tabs++;
+			}
+			delimiter = semicolons > 0 ? ';' : tabs > commas ? '\t' : ',';
+			decimalComma = delimiter != ',';   // "1,5;2,5" style files
+			split(start);
+
+			header  = new String[nCells];
+			columns = new double[nCells][];
+			for (int c = 0; c < nCells; c++) {
+				String name = new String(line, cellFrom[c], cellTo[c] - cellFrom[c]);
+				String lower = name.toLowerCase();
+				if (name.isEmpty()) name = "Column " + (c + 1);
+				else if (lower.equals("energy")) name = "Energy (eV)";
+				header[c] = name;
+				if (nameColumn < 0 && Arrays.asList(FILE_COLUMNS).contains(lower)) {
+					nameColumn = c;
+					names = new String[1024];
+					continue;
+				}
+				if (timeColumn < 0 && Arrays.asList(TIME_COLUMNS).contains(lower)) {
+					timeColumn = c;
+					times = new long[1024];
+				}
+				if (wanted.isEmpty() || wanted.contains(lower) || wanted.contains(name.toLowerCase()))
+					columns[c] = new double[1024];
+			}
+
+			while (nextLine()) {
+				split(0);
+				if (nCells == 1 && cellFrom[0] == cellTo[0]) continue;   // blank line
+				if (rows == capacity()) grow();
+				for (int c = 0; c < header.length; c++) {
+					boolean present = c < nCells;
+					int from = present ? cellFrom[c] : 0, to = present ? cellTo[c] : 0;
+					if (c == nameColumn) {
+						names[rows] = from < to ? new String(line, from, to - from) : null;
+						continue;
+					}
+					if (c == timeColumn)
+						times[rows] = from < to ? time(from, to) : Long.MIN_VALUE;
+					double[] col = columns[c];
+					if (col == null) continue;
+					if (from == to) {
+						col[rows] = Double.NaN;
+					} else {
+						col[rows] = number(line, from, to);
+						if (!ok) columns[c] = null;   // text column
+					}
+				}
+				rows++;
+			}
+			if (timeColumn >= 0) {
+				boolean any = false;
+				for (int r = 0; r < rows && !any; r++) any = times[r] != Long.MIN_VALUE;
+				if (!any) times = null;
+			}
+		}
+
+		private int capacity() {
+			for (double[] col : columns)
+				if (col != null) return col.length;
+			return names != null ? names.length : times != null ? times.length : Integer.MAX_VALUE;
+		}
+
+		private void grow() {
+			int n = 2 * Math.max(rows, 512);
+			for (int c = 0; c < columns.length; c++)
+				if (columns[c] != null) columns[c] = Arrays.copyOf(columns[c], n);
+			if (names != null) names = Arrays.copyOf(names, n);
+			if (times != null) times = Arrays.copyOf(times, n);
+		}
+
+		/** Reads the next line into {@code line}, without the line terminator. */
+		private boolean nextLine() throws IOException {
+			lineLen = 0;
+			boolean any = false;
+			while (true) {
+				if (pos == len) {
+					len = in.read(buf, 0, buf.length);
+					pos = 0;
+					if (len <= 0) {
+						len = 0;
+						return any;
+					}
+				}
+				any = true;
+				char ch = buf[pos++];
+				if (ch == '\n') return true;
+				if (ch == '\r') continue;
+				if (lineLen == line.length) line = Arrays.copyOf(line, 2 * lineLen);
+				line[lineLen++] = ch;
+			}
+		}
+
+		/** Finds the cells of {@code line}, trimmed and without surrounding quotes. */
+		private void split(int start) {
+			nCells = 0;
+			int i = start;
+			while (true) {
+				int from = i;
+				boolean quoted = false;
+				while (i < lineLen && (quoted || line[i] != delimiter)) {
+					if (line[i] == '"') quoted = !quoted;
+					i++;
+				}
+				int to = i;
+				while (from < to && line[from] <= ' ') from++;
+				while (to > from && line[to - 1] <= ' ') to--;
+				if (to - from >= 2 && line[from] == '"' && line[to - 1] == '"') {
+					from++;
+					to--;
+				}
+				if (nCells == cellFrom.length) {
+					cellFrom = Arrays.copyOf(cellFrom, 2 * nCells);
+					cellTo   = Arrays.copyOf(cellTo,   2 * nCells);
+				}
+				cellFrom[nCells] = from;
+				cellTo[nCells]   = to;
+				nCells++;
+				if (i >= lineLen) return;
+				i++;   // skip the delimiter
+			}
+		}
+
+		/**
+		 * Parses c[from, to) as a decimal number and sets {@link #ok}. Numbers of up
+		 * to 15 significant digits and a power of ten of at most 22 are exact as
+		 * one multiplication or division of doubles; the rare others go through
+		 * {@link Double#parseDouble}.
+		 */
+		double number(char[] c, int from, int to) {
+			ok = false;
+			int i = from;
+			boolean negative = false;
+			if (i < to && (c[i] == '-' || c[i] == '+')) negative = c[i++] == '-';
+			long mantissa = 0;
+			int digits = 0, exponent = 0;
+			boolean any = false;
+			for (; i < to && c[i] >= '0' && c[i] <= '9'; i++, any = true) {
+				if (digits < 18) {
+					mantissa = 10 * mantissa + (c[i] - '0');
+					if (mantissa != 0) digits++;
+				} else {
+					exponent++;
+				}
+			}
+			if (i < to && (c[i] == '.' || decimalComma && c[i] == ',')) {
+				for (i++; i < to && c[i] >= '0' && c[i] <= '9'; i++, any = true) {
+					if (digits < 18) {
+						mantissa = 10 * mantissa + (c[i] - '0');
+						if (mantissa != 0) digits++;
+						exponent--;
+					}
+				}
+			}
+			if (!any) {
+				ok = to - from == 3 && new String(c, from, 3).equalsIgnoreCase("nan");
+				return Double.NaN;
+			}
+			if (i < to && (c[i] == 'e' || c[i] == 'E')) {
+				i++;
+				boolean negExp = false;
+				if (i < to && (c[i] == '-' || c[i] == '+')) negExp = c[i++] == '-';
+				int e = 0;
+				boolean expDigits = false;
+				for (; i < to && c[i] >= '0' && c[i] <= '9'; i++, expDigits = true)
+					if (e < 100000) e = 10 * e + (c[i] - '0');
+				if (!expDigits) return Double.NaN;
+				exponent += negExp ? -e : e;
+			}
+			if (i != to) return Double.NaN;
+			ok = true;
+			if (digits > 15 || exponent < -22 || exponent > 22)
+				return Double.parseDouble(new String(c, from, to - from).replace(',', '.'));
+			double v = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+			return negative ? -v : v;
+		}
+
+		/**
+		 * Parses a timestamp cell: seconds or milliseconds since 1970, or a local date
+		 * and time with the year first ("2026-03-14 10:22:05.250", also with 'T' or
+		 * '/') or last ("14/03/2026 10:22:05"). Returns epoch milliseconds, or
+		 * Long.MIN_VALUE if the cell is not a timestamp.
+		 */
+		private long time(int from, int to) {
+			double x = number(line, from, to);
+			if (ok) {
+				if (x > 1e11) return (long) x;           // milliseconds
+				if (x > 1e9)  return (long) (1000 * x);  // seconds
+				return Long.MIN_VALUE;                   // relative time, not a timestamp
+			}
+			int[] f = new int[7];
+			int[] width = new int[7];
+			int n = 0;
+			boolean fraction = false;   // the seventh field follows a decimal point
+			for (int i = from; i < to && n < 7; ) {
+				if (line[i] < '0' || line[i] > '9') {
+					i++;
+					continue;
+				}
+				if (n == 6) fraction = line[i - 1] == '.' || line[i - 1] == ',';
+				int start = i, v = 0;
+				for (; i < to && line[i] >= '0' && line[i] <= '9'; i++)
+					if (i - start < 9) v = 10 * v + (line[i] - '0');
+				f[n] = v;
+				width[n++] = i - start;
+			}
+			if (n < 3) return Long.MIN_VALUE;
+			int year, month, day;
+			if (width[0] == 4) {
+				year = f[0]; month = f[1]; day = f[2];
+			} else if (width[2] == 4) {
+				day = f[0]; month = f[1]; year = f[2];
+			} else {
+				return Long.MIN_VALUE;
+			}
+			int millis = 0;
+			if (n > 6 && fraction) {
+				millis = f[6];
+				for (int w = width[6]; w < 3; w++) millis *= 10;
+				for (int w = Math.min(width[6], 9); w > 3; w--) millis /= 10;
+			}
+			try {
+				return LocalDateTime.of(year, month, day, f[3], f[4], f[5], millis * 1000000)
+						.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			} catch (DateTimeException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * UViewDatasetGenerator — writes folders of synthetic UView .dat files for testing
+ * and load-testing the readers.
+ *
+ * Each folder holds a simulated XAS scan: one frame per energy step across an
+ * absorption edge, with a bright region whose intensity follows the edge on a
+ * flat background plus detector noise, and a companion CSV (scan.csv) with the
+ * file name, timestamp, photon energy (Energy), a flux monitor (M4b) and the ring
+ * current of every frame. The frames are encoded into a reused buffer per thread
+ * and written with one call each, on all cores, so folders of 10^3 to 10^5 frames
+ * are written at about disk speed.
+ *
+ * With the variants option the frames cycle through every header layout the
+ * readers handle: file versions 6 and 8, with and without a recipe block, LEEM
+ * data versions 1, 2 and 256, and with and without a markup block.
+ *
+ * Run from the command line, with the plugin jar (or target/classes) on the
+ * class path; it does not need ImageJ:
+ * <pre>
+ *   java -cp LEEMandPEEM.jar UViewDatasetGenerator folder frames [width [height]]
+ *        [--variants] [--images=n] [--no-csv]
+ * </pre>
+ *
+ * @author Juan de la Figuera
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class UViewDatasetGenerator {
+
+	private static final DateTimeFormatter CSV_TIME =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	/** Time between frames, in milliseconds. */
+	private static final int FRAME_INTERVAL = 500;
+
+	/** Energy range of the scan, around the Fe L3 edge (eV). */
+	private static final double E_START = 700, E_END = 730, E_EDGE = 708;
+
+	public static void main(String[] args) throws IOException {
+		List<String> positional = new ArrayList<>();
+		boolean variants = false, csv = true;
+		int images = 1;
+		for (String a : args) {
+			if (a.equals("--variants")) variants = true;
+			else if (a.equals("--no-csv")) csv = false;
+			else if (a.startsWith("--images=")) images = Integer.parseInt(a.substring(9));
+			else positional.add(a);
+		}
+		if (positional.size() < 2) {
+			System.err.println("Usage: UViewDatasetGenerator folder frames [width [height]]"
+					+ " [--variants] [--images=n] [--no-csv]");
+			System.exit(1);
+		}
+		File folder = new File(positional.get(0));
+		int frames  = Integer.parseInt(positional.get(1));
+		int width   = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 256;
+		int height  = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : width;
+
+		long t0 = System.nanoTime();
+		long bytes = generate(folder, frames, width, height, variants, images, csv);
+		double s = (System.nanoTime() - t0) / 1e9;
+		System.out.printf("Wrote %d files (%d MB) to %s in %.1f s, %.0f files/s, %.0f MB/s%n",
+				frames, bytes >> 20, folder, s, frames / s, bytes / 1048576.0 / s);
+	}
+
+	/** The layouts cycled through with the variants option. */
+	static List<UViewWriter.Layout> variants(int images) {
+		List<UViewWriter.Layout> layouts = new ArrayList<>();
+		for (int version : new int[] {6, 8})
+			for (boolean recipe : new boolean[] {false, true}) {
+				if (recipe && version < 7) continue;   // no recipe block before version 7
+				for (int leem : new int[] {1, 2, 256})
+					for (int markup : new int[] {0, 200})
+						layouts.add(new UViewWriter.Layout(version, recipe, leem, markup, images));
+			}
+		return layouts;
+	}
+
+	/**
+	 * Writes {@code frames} files img00000.dat ... of {@code width} x {@code height}
+	 * into {@code folder} (created if needed), each with {@code images} images,
+	 * and scan.csv if {@code csv}. Returns the number of bytes written.
+	 */
+	static long generate(File folder, int frames, int width, int height, boolean variants,
+	                     int images, boolean csv) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Cannot create " + folder);
+		List<UViewWriter.Layout> layouts = variants
+				? variants(images) : Collections.singletonList(new UViewWriter.Layout(8, false, 256, 0, images));
+		long start = System.currentTimeMillis() / 1000 * 1000;
+		int digits = Math.max(5, Integer.toString(frames - 1).length());
+		String pattern = "img%0" + digits + "d.dat";
+
+		float[] spot = spot(width, height);
+		int nThreads = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, frames));
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		List<Future<Long>> parts = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			final int first = t;
+			parts.add(pool.submit(() -> {
+				long written = 0;
+				ByteBuffer buf = null;
+				short[][] pixels = new short[images][width * height];
+				long seed = 0x9E3779B97F4A7C15L * (first + 1);
+				for (int k = first; k < frames; k += nThreads) {
+					UViewWriter.Layout layout = layouts.get(k % layouts.size());
+					UViewWriter writer = new UViewWriter(width, height, layout);
+					UViewWriter.LeemBlock leem = leem(k, frames);
+					int size = (int) writer.fileSize(leem);
+					if (buf == null || buf.capacity() < size) buf = ByteBuffer.allocateDirect(size);
+					for (short[] p : pixels) seed = fill(p, spot, edge(energy(k, frames)), seed);
+					buf.clear();
+					writer.encode(buf, UViewWriter.fileTime(start + (long) k * FRAME_INTERVAL), leem, pixels);
+					buf.flip();
+					File f = new File(folder, String.format(pattern, k));
+					try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						while (buf.hasRemaining()) ch.write(buf);
+					}
+					written += size;
+				}
+				return written;
+			}));
+		}
+		long bytes = 0;
+		try {
+			for (Future<Long> part : parts) bytes += part.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (csv) bytes += writeCsv(new File(folder, "scan.csv"), frames, pattern, start);
+		return bytes;
+	}
+
+	private static long writeCsv(File file, int frames, String pattern, long start) throws IOException {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+			w.write("File,Timestamp,Energy,M4b,Ring Current\n");
+			Random random = new Random(1);
+			for (int k = 0; k < frames; k++) {
+				w.write(String.format(pattern, k));
+				w.write(',');
+				w.write(CSV_TIME.format(Instant.ofEpochMilli(start + (long) k * FRAME_INTERVAL)));
+				w.write(',');
+				w.write(String.format(Locale.ROOT, "%.3f,%.2f,%.3f%n", energy(k, frames),
+						5000 + 40 * random.nextGaussian(), 299.5 - 1e-4 * k));
+			}
+		}
+		return file.length();
+	}
+
+	/** The LEEM tags of frame {@code k}, as a PEEM at fixed start voltage would write them. */
+	private static UViewWriter.LeemBlock leem(int k, int frames) {
+		UViewWriter.LeemBlock b = new UViewWriter.LeemBlock();
+		b.number(0,   "Start Voltage", 4.25f, "V");
+		b.number(5,   "Sample Temp.", 312.5f, "K");
+		b.number(100, "MicrometerX", 1.5f, "");
+		b.number(100, "MicrometerY", -2.25f, "");
+		b.text  (101, "FOV", "25 um");
+		b.number(104, "CameraExposure", 0.5f, "s");
+		b.text  (105, "Title", "Synthetic scan");
+		b.number(106, "Gauge", 1.2e-9f + 1e-12f * k, "Torr");
+		b.number(110, "FOVCalibration", 0.0244f, "um");
+		b.number(115, "MCPScreenVoltage", 5.5f, "kV");
+		b.number(116, "MCPChannelPlate", 1.25f, "kV");
+		return b;
+	}
+
+	private static double energy(int k, int frames) {
+		return frames > 1 ? E_START + (E_END - E_START) * k / (frames - 1) : E_START;
+	}
+
+	/** Relative absorption: a step at the edge with a white line just above it. */
+	private static float edge(double e) {
+		double x = e - E_EDGE;
+		return (float) (0.5 + 0.5 * Math.tanh(x / 0.6) + 1.2 * Math.exp(-x * x / 2));
+	}
+
+	/** A bright disc in the middle third of the field of view, with soft borders. */
+	private static float[] spot(int width, int height) {
+		float[] spot = new float[width * height];
+		double cx = width / 2.0, cy = height / 2.0, r = Math.min(width, height) / 6.0;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				double d = Math.hypot(x - cx, y - cy);
+				spot[y * width + x] = (float) (1 / (1 + Math.exp((d - r) / 2)));
+			}
+		return spot;
+	}
+
+	/**
+	 * Fills a frame: background of 1000 counts, the disc scaled by the absorption,
+	 * and about ±32 counts of noise from a xorshift generator. Returns the new seed.
+	 */
+	private static long fill(short[] p, float[] spot, float absorption, long seed) {
+		float gain = 1500 * absorption;
+		for (int i = 0; i < p.length; i++) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			p[i] = (short) (1000 + (int) (gain * spot[i]) + (int) (seed & 63) - 32);
+		}
+		return seed;
+	}
+}
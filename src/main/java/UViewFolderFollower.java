@@ -0,0 +1,187 @@
+/**
+ * UViewFolderFollower — appends .dat files to an open stack as U-view writes them.
+ *
+ * Watches the folder with a WatchService. A new file is decoded once its size has
+ * stayed the same for a short quiet period and is at least the length its header
+ * describes, so that a writer pausing in the middle of the pixels is waited for;
+ * it is then appended to the stack on the event dispatch thread. Only the new
+ * frames are decoded, on this background thread. Following stops when the image
+ * window is closed or its stack is replaced.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.gui.ImageWindow;
+import ij.process.*;
+
+import java.awt.EventQueue;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class UViewFolderFollower implements Runnable {
+
+	/** How long a file must keep the same size before it is considered complete. */
+	private static final long QUIET_MS = 500;
+	/** A file that still cannot be decoded after this many attempts is skipped. */
+	private static final int  MAX_ATTEMPTS = 10;
+
+	private final ImagePlus   imp;
+	private final ImageStack  stack;
+	private final File        folder;
+	private final String      filter;
+	private final UViewIndex  index;
+	private final UView_Folder_Reader.Region region;
+	private final Set<String> seen;
+
+	private static class Candidate {
+		long size = -1;
+		long stableSince;
+		int  attempts;
+	}
+
+	private final Map<String, Candidate> candidates = new TreeMap<>();
+
+	/**
+	 * @param known names of the .dat files that were already in the folder when
+	 *              it was opened; only files not in this set are appended
+	 */
+	public UViewFolderFollower(ImagePlus imp, File folder, String filter, UViewIndex index,
+	                           UView_Folder_Reader.Region region, Collection<String> known) {
+		this.imp    = imp;
+		this.stack  = imp.getStack();
+		this.folder = folder;
+		this.filter = filter;
+		this.index  = index;
+		this.region = region;
+		this.seen   = new HashSet<>(known);
+	}
+
+	/** Starts following on a daemon thread. */
+	public void start() {
+		Thread t = new Thread(this, "UView follow " + folder.getName());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		IJ.log("UView Folder Reader: following " + folder.getAbsolutePath());
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			folder.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			// files written between the initial listing and registration
+			rescan();
+			while (isOpen()) {
+				WatchKey key = watcher.poll(QUIET_MS / 2, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> ev : key.pollEvents()) {
+						if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+							rescan();
+							continue;
+						}
+						consider(((Path) ev.context()).toString());
+					}
+					if (!key.reset()) break;   // folder deleted or no longer accessible
+				}
+				appendReady();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			IJ.log("UView Folder Reader: cannot watch " + folder.getAbsolutePath()
+					+ " — " + e.getMessage());
+		} finally {
+			index.save();
+			IJ.log("UView Folder Reader: stopped following " + folder.getAbsolutePath());
+		}
+	}
+
+	/** True while the stack is still shown in its window. */
+	private boolean isOpen() {
+		ImageWindow win = imp.getWindow();
+		return win != null && !win.isClosed() && imp.getStack() == stack;
+	}
+
+	private void rescan() {
+		String[] names = folder.list();
+		if (names != null)
+			for (String name : names) consider(name);
+	}
+
+	private void consider(String name) {
+		if (seen.contains(name) || candidates.containsKey(name)) return;
+		if (!name.toLowerCase().endsWith(".dat")) return;
+		if (!filter.isEmpty() && !name.contains(filter)) return;
+		candidates.put(name, new Candidate());
+	}
+
+	/**
+	 * Throws while {@code file} is shorter than its headers describe, i.e. U-view
+	 * is still writing it. A longer file is complete: its pixels are read from
+	 * the end.
+	 */
+	private static void checkComplete(File file) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+			UViewLEEMData.Header[] hh = new UViewLEEMData.Header[1];
+			UViewLEEMData.readHead(f, hh);
+			long length = f.length(), expected = hh[0].completeLength();
+			if (length < expected)
+				throw new EOFException("Incomplete file: " + length + " of " + expected + " bytes");
+		}
+	}
+
+	/** Decodes and appends, in name order, the candidates that have finished writing. */
+	private void appendReady() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Candidate>> it = candidates.entrySet().iterator();
+		while (it.hasNext() && isOpen()) {
+			Map.Entry<String, Candidate> e = it.next();
+			Candidate c = e.getValue();
+			File f = new File(folder, e.getKey());
+			long size = f.length();
+			if (size != c.size) {
+				c.size = size;
+				c.stableSince = now;
+				continue;
+			}
+			if (size == 0 || now - c.stableSince < QUIET_MS) continue;
+
+			UView_Folder_Reader.FrameData frame;
+			try {
+				checkComplete(f);
+				frame = UView_Folder_Reader.readDat(f, index, region);
+			} catch (Exception ex) {
+				if (++c.attempts < MAX_ATTEMPTS) {
+					c.stableSince = now;
+					continue;
+				}
+				IJ.log("Skipped (read error): " + f.getName() + " — " + ex.getMessage());
+				it.remove();
+				seen.add(e.getKey());
+				continue;
+			}
+			it.remove();
+			seen.add(e.getKey());
+			if (frame.pixels == null) {
+				IJ.log("Skipped (different size): " + f.getName());
+				continue;
+			}
+			final String label = UView_Folder_Reader.sliceLabel(f, frame.label,
+					UViewCsvTags.NONE);
+			final ShortProcessor sp = new ShortProcessor(region.outWidth, region.outHeight,
+					frame.pixels, null);
+			final Map<String, Double> row = UViewTagTable.row(frame.values, null);
+			EventQueue.invokeLater(() -> {
+				if (imp.getStack() != stack) return;
+				Object table = imp.getProperty(UViewTagTable.PROPERTY);
+				if (table instanceof UViewTagTable && ((UViewTagTable) table).size() == stack.getSize())
+					((UViewTagTable) table).addRow(row);
+				stack.addSlice(label, sp);
+				imp.setStack(stack);
+			});
+		}
+	}
+}
@@ -0,0 +1,405 @@
+/**
+ * UViewFormula — the X and Y formulas of Plot Intensity vs Tag and Quick Normalize,
+ * compiled once into an expression tree.
+ *
+ * Syntax: numbers (1, 0.5, 1e-3), variables, + - * /, unary minus, parentheses and
+ * the functions log (natural), log10, exp, sqrt, abs, pow(a, b), min(a, b, ...)
+ * and max(a, b, ...). A variable is an identifier of letters, digits and
+ * underscores; each variable name given to {@link #compile} gets a slot, its
+ * position in the list, and the formula is evaluated either for one set of slot
+ * values or over whole columns, one array per slot, in a single call.
+ *
+ * Tags are available as variables under a sanitised name, see {@link #identifier}:
+ * "Energy (eV)" is Energy_eV, "Start Voltage (V)" is Start_Voltage_V.
+ *
+ * @author Juan de la Figuera
+ */
+
+import java.util.*;
+
+final class UViewFormula {
+
+	private final Node      root;
+	private final boolean[] used;
+
+	private UViewFormula(Node root, boolean[] used) {
+		this.root = root;
+		this.used = used;
+	}
+
+	/**
+	 * Compiles {@code formula}; {@code variables.get(k)} is the name of slot
+	 * {@code k} (null entries are skipped).
+	 *
+	 * @throws IllegalArgumentException on a syntax error, an unknown variable or function
+	 */
+	static UViewFormula compile(String formula, List<String> variables) {
+		Map<String, Integer> slots = new HashMap<>();
+		for (int k = 0; k < variables.size(); k++) {
+			String name = variables.get(k);
+			if (name != null && !slots.containsKey(name)) slots.put(name, k);
+		}
+		boolean[] used = new boolean[variables.size()];
+		Node root = new Parser(formula.trim(), slots, used).parse();
+		return new UViewFormula(root, used);
+	}
+
+	/**
+	 * The variable name of a tag: runs of characters other than ASCII letters and
+	 * digits become one underscore, leading and trailing ones are dropped, and a
+	 * leading digit gets an underscore in front. Null if nothing is left.
+	 */
+	static String identifier(String tag) {
+		String id = tag.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_+|_+$", "");
+		if (id.isEmpty()) return null;
+		return Character.isDigit(id.charAt(0)) ? "_" + id : id;
+	}
+
+	/** Whether the formula reads slot {@code k}; unused slots may be left null in {@link #eval(double[][], int)}. */
+	boolean uses(int k) {
+		return k < used.length && used[k];
+	}
+
+	/** The value for one set of slot values. */
+	double eval(double... slots) {
+		return root.eval(slots);
+	}
+
+	/** The values for {@code n} rows; {@code columns[k]} holds the values of slot {@code k}. */
+	double[] eval(double[][] columns, int n) {
+		double[] out = new double[n];
+		root.eval(columns, n, out);
+		return out;
+	}
+
+	// -------------------------------------------------------------------------
+	// Expression tree
+	// -------------------------------------------------------------------------
+
+	private abstract static class Node {
+		abstract double eval(double[] slots);
+
+		/** Stores the values of {@code n} rows in {@code out}. */
+		abstract void eval(double[][] columns, int n, double[] out);
+
+		boolean isConstant() {
+			return false;
+		}
+	}
+
+	private static final class Const extends Node {
+		final double value;
+
+		Const(double value) {
+			this.value = value;
+		}
+
+		@Override
+		double eval(double[] slots) {
+			return value;
+		}
+
+		@Override
+		void eval(double[][] columns, int n, double[] out) {
+			Arrays.fill(out, 0, n, value);
+		}
+
+		@Override
+		boolean isConstant() {
+			return true;
+		}
+	}
+
+	private static final class Var extends Node {
+		final int slot;
+
+		Var(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		double eval(double[] slots) {
+			return slots[slot];
+		}
+
+		@Override
+		void eval(double[][] columns, int n, double[] out) {
+			System.arraycopy(columns[slot], 0, out, 0, n);
+		}
+	}
+
+	private static final class Neg extends Node {
+		final Node a;
+
+		Neg(Node a) {
+			this.a = a;
+		}
+
+		@Override
+		double eval(double[] slots) {
+			return -a.eval(slots);
+		}
+
+		@Override
+		void eval(double[][] columns, int n, double[] out) {
+			a.eval(columns, n, out);
+			for (int i = 0; i < n; i++) out[i] = -out[i];
+		}
+	}
+
+	private static final class Binary extends Node {
+		final char op;
+		final Node a, b;
+
+		Binary(char op, Node a, Node b) {
+			this.op = op;
+			this.a  = a;
+			this.b  = b;
+		}
+
+		static double apply(char op, double x, double y) {
+			switch (op) {
+			case '+': return x + y;
+			case '-': return x - y;
+			case '*': return x * y;
+			default:  return x / y;
+			}
+		}
+
+		@Override
+		double eval(double[] slots) {
+			return apply(op, a.eval(slots), b.eval(slots));
+		}
+
+		@Override
+		void eval(double[][] columns, int n, double[] out) {
+			a.eval(columns, n, out);
+			if (b.isConstant()) {
+				double y = ((Const) b).value;
+				switch (op) {
+				case '+': for (int i = 0; i < n; i++) out[i] += y; break;
+				case '-': for (int i = 0; i < n; i++) out[i] -= y; break;
+				case '*': for (int i = 0; i < n; i++) out[i] *= y; break;
+				default:  for (int i = 0; i < n; i++) out[i] /= y;
+				}
+				return;
+			}
+			double[] y = new double[n];
+			b.eval(columns, n, y);
+			switch (op) {
+			case '+': for (int i = 0; i < n; i++) out[i] += y[i]; break;
+			case '-': for (int i = 0; i < n; i++) out[i] -= y[i]; break;
+			case '*': for (int i = 0; i < n; i++) out[i] *= y[i]; break;
+			default:  for (int i = 0; i < n; i++) out[i] /= y[i];
+			}
+		}
+	}
+
+	private enum Function {
+		LOG(1), LOG10(1), EXP(1), SQRT(1), ABS(1), POW(2), MIN(-1), MAX(-1);
+
+		final int arity;    // -1: one or more
+
+		Function(int arity) {
+			this.arity = arity;
+		}
+
+		double apply(double x, double y) {
+			switch (this) {
+			case LOG:   return Math.log(x);
+			case LOG10: return Math.log10(x);
+			case EXP:   return Math.exp(x);
+			case SQRT:  return Math.sqrt(x);
+			case ABS:   return Math.abs(x);
+			case POW:   return Math.pow(x, y);
+			case MIN:   return Math.min(x, y);
+			default:    return Math.max(x, y);
+			}
+		}
+	}
+
+	private static final class Call extends Node {
+		final Function fn;
+		final Node[]   args;
+
+		Call(Function fn, Node[] args) {
+			this.fn   = fn;
+			this.args = args;
+		}
+
+		@Override
+		double eval(double[] slots) {
+			double v = args[0].eval(slots);
+			if (args.length == 1 && fn.arity == 1) return fn.apply(v, 0);
+			for (int k = 1; k < args.length; k++) v = fn.apply(v, args[k].eval(slots));
+			return v;
+		}
+
+		@Override
+		void eval(double[][] columns, int n, double[] out) {
+			args[0].eval(columns, n, out);
+			if (fn.arity == 1) {
+				for (int i = 0; i < n; i++) out[i] = fn.apply(out[i], 0);
+				return;
+			}
+			double[] y = new double[n];
+			for (int k = 1; k < args.length; k++) {
+				args[k].eval(columns, n, y);
+				for (int i = 0; i < n; i++) out[i] = fn.apply(out[i], y[i]);
+			}
+		}
+	}
+
+	/** Replaces {@code node} by its value if it does not depend on any variable. */
+	private static Node fold(Node node, boolean constant) {
+		return constant ? new Const(node.eval(new double[0])) : node;
+	}
+
+	// -------------------------------------------------------------------------
+	// Parser
+	// -------------------------------------------------------------------------
+
+	private static final class Parser {
+		private final String               expr;
+		private final Map<String, Integer> slots;
+		private final boolean[]            used;
+		private int pos;
+
+		Parser(String expr, Map<String, Integer> slots, boolean[] used) {
+			this.expr  = expr;
+			this.slots = slots;
+			this.used  = used;
+		}
+
+		Node parse() {
+			Node result = parseExpr();
+			skipSpaces();
+			if (pos < expr.length())
+				throw new IllegalArgumentException("Unexpected character at position " + pos
+						+ ": '" + expr.charAt(pos) + "'");
+			return result;
+		}
+
+		private Node parseExpr() {
+			Node result = parseTerm();
+			while (true) {
+				skipSpaces();
+				if (pos >= expr.length()) break;
+				char c = expr.charAt(pos);
+				if (c != '+' && c != '-') break;
+				pos++;
+				result = binary(c, result, parseTerm());
+			}
+			return result;
+		}
+
+		private Node parseTerm() {
+			Node result = parseFactor();
+			while (true) {
+				skipSpaces();
+				if (pos >= expr.length()) break;
+				char c = expr.charAt(pos);
+				if (c != '*' && c != '/') break;
+				pos++;
+				result = binary(c, result, parseFactor());
+			}
+			return result;
+		}
+
+		private Node parseFactor() {
+			skipSpaces();
+			if (pos >= expr.length()) throw new IllegalArgumentException("Unexpected end of expression");
+			char c = expr.charAt(pos);
+			if (c == '(') {
+				pos++;
+				Node result = parseExpr();
+				expect(')', "Expected closing parenthesis");
+				return result;
+			}
+			if (c == '-') {
+				pos++;
+				Node a = parseFactor();
+				return fold(new Neg(a), a.isConstant());
+			}
+			if (c == '+') {
+				pos++;
+				return parseFactor();
+			}
+			if (Character.isLetter(c) || c == '_') {
+				int start = pos;
+				while (pos < expr.length()
+						&& (Character.isLetterOrDigit(expr.charAt(pos)) || expr.charAt(pos) == '_')) pos++;
+				String name = expr.substring(start, pos);
+				skipSpaces();
+				if (pos < expr.length() && expr.charAt(pos) == '(') {
+					pos++;
+					return call(name);
+				}
+				Integer slot = slots.get(name);
+				if (slot == null)
+					throw new IllegalArgumentException("Unknown variable: '" + name + "'");
+				used[slot] = true;
+				return new Var(slot);
+			}
+			if (Character.isDigit(c) || c == '.') {
+				int start = pos;
+				while (pos < expr.length()) {
+					char d = expr.charAt(pos);
+					if (Character.isDigit(d) || d == '.') { pos++; continue; }
+					if ((d == 'e' || d == 'E') && pos > start) { pos++; continue; }
+					if ((d == '+' || d == '-') && pos > start
+							&& (expr.charAt(pos - 1) == 'e' || expr.charAt(pos - 1) == 'E')) {
+						pos++; continue;
+					}
+					break;
+				}
+				try {
+					return new Const(Double.parseDouble(expr.substring(start, pos)));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid number: '" + expr.substring(start, pos) + "'");
+				}
+			}
+			throw new IllegalArgumentException("Unexpected character: '" + c + "'");
+		}
+
+		/** The arguments of function {@code name}, after its opening parenthesis. */
+		private Node call(String name) {
+			Function fn;
+			try {
+				fn = Function.valueOf(name.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown function: '" + name + "'");
+			}
+			List<Node> args = new ArrayList<>();
+			args.add(parseExpr());
+			skipSpaces();
+			while (pos < expr.length() && expr.charAt(pos) == ',') {
+				pos++;
+				args.add(parseExpr());
+				skipSpaces();
+			}
+			expect(')', "Expected closing parenthesis after the arguments of " + name);
+			if (fn.arity > 0 ? args.size() != fn.arity : args.size() < 1)
+				throw new IllegalArgumentException(name + " takes " + fn.arity + " argument"
+						+ (fn.arity == 1 ? "" : "s") + ", not " + args.size());
+			boolean constant = true;
+			for (Node a : args) constant &= a.isConstant();
+			return fold(new Call(fn, args.toArray(new Node[0])), constant);
+		}
+
+		private Node binary(char op, Node a, Node b) {
+			return fold(new Binary(op, a, b), a.isConstant() && b.isConstant());
+		}
+
+		private void expect(char c, String message) {
+			skipSpaces();
+			if (pos >= expr.length() || expr.charAt(pos) != c)
+				throw new IllegalArgumentException(message);
+			pos++;
+		}
+
+		private void skipSpaces() {
+			while (pos < expr.length() && Character.isWhitespace(expr.charAt(pos))) pos++;
+		}
+	}
+}
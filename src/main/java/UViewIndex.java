@@ -0,0 +1,161 @@
+/**
+ * UViewIndex — on-disk cache of the parsed headers of the .dat files in a folder.
+ *
+ * Stored as {@value #FILE_NAME} next to the .dat files. For each file it keeps the
+ * image size, pixel offset, acquisition time and the metadata parsed from the LEEM
+ * block (as text and, for numeric tags, as numbers), keyed by file name and
+ * checked against the file size and modification time, so a file that has been
+ * rewritten is parsed again. Re-opening a folder then costs one read of the index
+ * plus the pixel I/O.
+ *
+ * If the folder is not writable the index simply lives for the current run.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.IJ;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+public class UViewIndex {
+
+	public static final String FILE_NAME = "uview_index.uvx";
+
+	static final int MAGIC   = 0x55564958; // "UVIX"
+	private static final int VERSION = 2;
+
+	private static class Entry {
+		long size, mtime;
+		UView_Folder_Reader.FrameHeader header;
+	}
+
+	private final File folder;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private boolean dirty;
+
+	private UViewIndex(File folder) {
+		this.folder = folder;
+	}
+
+	/** Loads the index of {@code folder}; a missing, old or damaged index gives an empty one. */
+	public static UViewIndex load(File folder) {
+		UViewIndex index = new UViewIndex(folder);
+		File file = new File(folder, FILE_NAME);
+		if (!file.isFile()) return index;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return index;
+			int n = in.readInt();
+			for (int k = 0; k < n; k++) {
+				String name = in.readUTF();
+				Entry e = new Entry();
+				e.size  = in.readLong();
+				e.mtime = in.readLong();
+				UView_Folder_Reader.FrameHeader h = new UView_Folder_Reader.FrameHeader();
+				h.width       = in.readInt();
+				h.height      = in.readInt();
+				h.pixelOffset = in.readLong();
+				h.time        = in.readLong();
+				int nMeta = in.readInt();
+				h.meta = new LinkedHashMap<>();
+				for (int m = 0; m < nMeta; m++)
+					h.meta.put(in.readUTF(), in.readUTF());
+				int nValues = in.readInt();
+				h.values = new LinkedHashMap<>();
+				for (int m = 0; m < nValues; m++)
+					h.values.put(in.readUTF(), in.readDouble());
+				h.label = UView_Folder_Reader.labelOf(h.meta);
+				e.header = h;
+				index.entries.put(name, e);
+			}
+		} catch (IOException e) {
+			IJ.log("UView Folder Reader: ignoring unreadable index " + file.getName()
+					+ " — " + e.getMessage());
+			index.entries.clear();
+		}
+		return index;
+	}
+
+	/** Returns the cached header of {@code f}, or null if missing or stale. */
+	public synchronized UView_Folder_Reader.FrameHeader lookup(File f) {
+		Entry e = entries.get(f.getName());
+		if (e == null || e.size != f.length() || e.mtime != f.lastModified()) return null;
+		return e.header;
+	}
+
+	/** Records the freshly parsed header of {@code f}. */
+	public synchronized void put(File f, UView_Folder_Reader.FrameHeader h) {
+		Entry e = new Entry();
+		e.size   = f.length();
+		e.mtime  = f.lastModified();
+		e.header = h;
+		entries.put(f.getName(), e);
+		dirty = true;
+	}
+
+	/** Returns the header of {@code f}, from the index when it is up to date. */
+	public UView_Folder_Reader.FrameHeader header(File f) throws IOException {
+		UView_Folder_Reader.FrameHeader h = lookup(f);
+		if (h == null) {
+			h = UView_Folder_Reader.readHeader(f);
+			put(f, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Writes the index back if anything changed. Entries of files that no longer
+	 * exist are dropped. The file is written to a temporary name and then renamed,
+	 * so a crash never leaves a truncated index behind.
+	 */
+	public synchronized void save() {
+		if (!dirty) return;
+		File file = new File(folder, FILE_NAME);
+		File tmp  = new File(folder, FILE_NAME + ".tmp");
+		entries.keySet().removeIf(name -> !new File(folder, name).isFile());
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> me : entries.entrySet()) {
+				Entry e = me.getValue();
+				UView_Folder_Reader.FrameHeader h = e.header;
+				out.writeUTF(me.getKey());
+				out.writeLong(e.size);
+				out.writeLong(e.mtime);
+				out.writeInt(h.width);
+				out.writeInt(h.height);
+				out.writeLong(h.pixelOffset);
+				out.writeLong(h.time);
+				out.writeInt(h.meta.size());
+				for (Map.Entry<String, String> m : h.meta.entrySet()) {
+					out.writeUTF(m.getKey());
+					out.writeUTF(m.getValue());
+				}
+				out.writeInt(h.values.size());
+				for (Map.Entry<String, Double> m : h.values.entrySet()) {
+					out.writeUTF(m.getKey());
+					out.writeDouble(m.getValue());
+				}
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			IJ.log("UView Folder Reader: could not write index in " + folder.getAbsolutePath()
+					+ " — " + e.getMessage());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tmp.delete();
+			IJ.log("UView Folder Reader: could not replace index " + file.getAbsolutePath()
+					+ " — " + e.getMessage());
+			return;
+		}
+		dirty = false;
+	}
+}
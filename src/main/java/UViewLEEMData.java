@@ -0,0 +1,252 @@
+/**
+ * UViewLEEMData — decodes the headers and LEEM data block of UKSOFT2001 files.
+ *
+ * Shared by the SCIFIO reader (UView_reader) and the UView Folder Reader. Both read
+ * the start of the file into memory with one or two I/O calls and decode it here,
+ * instead of reading the header fields one at a time from the file. The LEEM tags
+ * are handed to a {@link TagSink} together with their tag code, so that each reader
+ * can keep its own way of storing the values.
+ *
+ * @author Juan de la Figuera
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.time.Instant;
+import java.util.Arrays;
+
+public class UViewLEEMData {
+
+	public static final String MAGIC = "UKSOFT2001";
+
+	/** Bytes read up front; enough for the headers and LEEM block of nearly all files. */
+	public static final int PREFIX = 4096;
+
+	static final String[] UNIT_NAMES = {"", "V", "mA", "A", "\u00b0C", "K", "mV", "pA", "nA", "\u00b5A"};
+
+	/** Receives the decoded LEEM tags. */
+	public interface TagSink {
+		/**
+		 * A numeric tag. {@code unit} is the unit stored with the tag or implied by
+		 * it ("s" for tag 104, "kV" for 115 and 116), or an empty string.
+		 */
+		void number(int tag, String key, float value, String unit);
+
+		/** A text tag (101 FOV, 105 Title), exactly as stored. */
+		void text(int tag, String key, String value);
+	}
+
+	/** The layout of the first image of a file, from its file and image headers. */
+	public static final class Header {
+		public int  fileHeaderSize, version, width, height, nImages;
+		public int  recipeBlockSize;
+		/** Offset of the image header, right after the file header and recipe. */
+		public int  imageHeaderStart;
+		public int  imageHeaderSize;
+		public long time;
+		public int  markupSize;
+		public int  leemDataVersion;
+		/** Position and length of the LEEM data block in the file (length 0 if none). */
+		public int  leemStart, leemLength;
+		/** End of the header, markup and LEEM blocks of the first image. */
+		public int  headerEnd;
+
+		/**
+		 * Length of the whole file: the file header and recipe, then for each of
+		 * the {@code nImages} images (at least one) its headers, as long as those of
+		 * the first, and its pixels.
+		 */
+		public long completeLength() {
+			long perImage = (headerEnd - imageHeaderStart) + 2L * width * height;
+			return imageHeaderStart + Math.max(1, nImages) * perImage;
+		}
+	}
+
+	/**
+	 * Decodes the file and image headers from {@code head}, the first bytes of the
+	 * file. {@code head} must hold at least the file header, recipe and the fixed
+	 * 28 bytes of the image header; {@link Header#headerEnd} tells how much is
+	 * needed for the LEEM block.
+	 *
+	 * @throws IOException if the file is not a UView file or {@code head} is too short
+	 */
+	public static Header parseHeader(byte[] head, int length) throws IOException {
+		if (length < 104 || !new String(head, 0, MAGIC.length()).startsWith(MAGIC))
+			throw new IOException("Not a UView file");
+		ByteBuffer b = ByteBuffer.wrap(head, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+		Header h = new Header();
+		h.fileHeaderSize = b.getShort(20) & 0xFFFF;
+		h.version        = b.getShort(22) & 0xFFFF;
+		h.width          = b.getShort(40) & 0xFFFF;
+		h.height         = b.getShort(42) & 0xFFFF;
+		h.nImages        = b.getShort(44) & 0xFFFF;
+		// attachedRecipeSize is at offset 46 from version 7 on; the recipe block
+		// on disk is always 128 bytes when present
+		if (h.version >= 7 && (b.getShort(46) & 0xFFFF) > 0)
+			h.recipeBlockSize = 128;
+
+		int ih = h.fileHeaderSize + h.recipeBlockSize;
+		if (ih + 28 > length)
+			throw new EOFException("Truncated header");
+		h.imageHeaderStart = ih;
+		h.imageHeaderSize  = b.getShort(ih) & 0xFFFF;
+		h.time             = b.getLong(ih + 8);
+		int attachedMarkupSize = b.getShort(ih + 22) & 0xFFFF;
+		h.leemDataVersion  = b.getShort(ih + 26) & 0xFFFF;
+		h.markupSize = attachedMarkupSize > 0 ? 128 * ((attachedMarkupSize / 128) + 1) : 0;
+
+		// When LEEMdataVersion > 2 its value IS the size of the external LEEM data
+		// block, located after the markup block. Versions 1 and 2 embed the LEEM
+		// data inside the image header starting at byte 28.
+		if (h.leemDataVersion > 2) {
+			h.leemStart  = ih + h.imageHeaderSize + h.markupSize;
+			h.leemLength = h.leemDataVersion;
+		} else if (h.leemDataVersion >= 1) {
+			h.leemStart  = ih + 28;
+			h.leemLength = Math.max(0, h.imageHeaderSize - 28);
+		}
+		h.headerEnd = ih + h.imageHeaderSize + h.markupSize
+				+ (h.leemDataVersion > 2 ? h.leemDataVersion : 0);
+		return h;
+	}
+
+	/**
+	 * Reads the headers of a file positioned anywhere: one read of the first
+	 * {@link #PREFIX} bytes, and a second one only if the headers are longer.
+	 * Returns the bytes from the start of the file up to at least
+	 * {@link Header#headerEnd}; the header itself goes to {@code out[0]}.
+	 */
+	public static byte[] readHead(RandomAccessFile f, Header[] out) throws IOException {
+		int n = (int) Math.min(f.length(), PREFIX);
+		byte[] head = new byte[n];
+		f.seek(0);
+		f.readFully(head);
+		Header h = parseHeader(head, n);
+		if (h.headerEnd > n) {
+			if (h.headerEnd > f.length())
+				throw new EOFException("Truncated file");
+			head = Arrays.copyOf(head, h.headerEnd);
+			f.readFully(head, n, h.headerEnd - n);
+		}
+		out[0] = h;
+		return head;
+	}
+
+	/** Decodes the LEEM block of {@code h} from {@code head}, which holds the file up to its end. */
+	public static void decode(byte[] head, Header h, TagSink sink) {
+		if (h.leemLength > 0)
+			decode(head, h.leemStart, Math.min(h.leemLength, head.length - h.leemStart),
+					h.leemDataVersion > 1, sink);
+	}
+
+	/**
+	 * Decodes a LEEM data block of {@code length} bytes at {@code offset}.
+	 *
+	 * @param averagingBytes whether tag 104 (camera exposure) is followed by the two
+	 *                       averaging bytes, as in LEEM data version 2 and later
+	 */
+	public static void decode(byte[] block, int offset, int length, boolean averagingBytes,
+	                          TagSink sink) {
+		ByteBuffer b = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			int rawTag = block[i++] & 0xFF;
+			if (rawTag == 0xFF) break;
+			int tag = rawTag & 0x7F; // strip "hidden" bit (0x80 = recorded but not shown on image)
+
+			switch (tag) {
+			case 16:
+				i++;
+				break;
+			case 100:
+				sink.number(tag, "MicrometerX", b.getFloat(i), "");     i += 4;
+				sink.number(tag, "MicrometerY", b.getFloat(i), "");     i += 4;
+				break;
+			case 101: {
+				int z = indexOf0(block, i, end);
+				sink.text(tag, "FOV", new String(block, i, z - i));
+				i = z + 1;
+				break;
+			}
+			case 102:
+				sink.number(tag, "Varian1", b.getFloat(i), "");         i += 4;
+				break;
+			case 103:
+				sink.number(tag, "Varian2", b.getFloat(i), "");         i += 4;
+				break;
+			case 104:
+				sink.number(tag, "CameraExposure", b.getFloat(i), "s"); i += 4;
+				if (averagingBytes) i += 2; // B1, B2
+				break;
+			case 105: {
+				int z = indexOf0(block, i, end);
+				sink.text(tag, "Title", new String(block, i, z - i));
+				i = z + 1;
+				break;
+			}
+			case 106: case 107: case 108: case 109: {
+				int z1 = indexOf0(block, i, end);
+				String name = new String(block, i, z1 - i); i = z1 + 1;
+				int z2 = indexOf0(block, i, end);
+				String units = new String(block, i, z2 - i); i = z2 + 1;
+				sink.number(tag, name, b.getFloat(i), units);           i += 4;
+				break;
+			}
+			case 110: {
+				int z = indexOf0(block, i, end);
+				String unit = new String(block, i, z - i); i = z + 1;
+				sink.number(tag, "FOVCalibration", b.getFloat(i), unit); i += 4;
+				break;
+			}
+			case 111:
+				sink.number(tag, "Phi",   b.getFloat(i), "");           i += 4;
+				sink.number(tag, "Theta", b.getFloat(i), "");           i += 4;
+				break;
+			case 115:
+				sink.number(tag, "MCPScreenVoltage", b.getFloat(i), "kV"); i += 4;
+				break;
+			case 116:
+				sink.number(tag, "MCPChannelPlate",  b.getFloat(i), "kV"); i += 4;
+				break;
+			default:
+				if (tag < 100) {
+					// Format: name + unit_digit(0-9) + 0x00 + float(4)
+					// Unit codes: 0=none,1=V,2=mA,3=A,4=C,5=K,6=mV,7=pA,8=nA,9=uA
+					int z = indexOf0(block, i, end);
+					String nameAndUnit = new String(block, i, z - i); i = z + 1;
+					float value = b.getFloat(i); i += 4;
+					if (nameAndUnit.length() > 0) {
+						char   unitCode = nameAndUnit.charAt(nameAndUnit.length() - 1);
+						String modName  = nameAndUnit.substring(0, nameAndUnit.length() - 1);
+						String unit     = (unitCode >= '0' && unitCode <= '9')
+								? UNIT_NAMES[unitCode - '0'] : "";
+						sink.number(tag, modName, value, unit);
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * The metadata key of a numeric tag: gauges (106–109) and module readings
+	 * (below 100) carry their unit in the key, e.g. "Start Voltage (V)".
+	 */
+	public static String key(int tag, String name, String unit) {
+		if (tag >= 106 && tag <= 109) return name + " (" + unit + ")";
+		if (tag < 100 && !unit.isEmpty()) return name + " (" + unit + ")";
+		return name;
+	}
+
+	/** Converts a Windows FILETIME (100 ns since 1601) to an instant. */
+	public static Instant fileTime(long winFileTime) {
+		return Instant.ofEpochMilli((winFileTime - 116444736000000000L) / 10000L);
+	}
+
+	private static int indexOf0(byte[] buf, int from, int end) {
+		for (int i = from; i < end; i++)
+			if (buf[i] == 0) return i;
+		return end;
+	}
+}
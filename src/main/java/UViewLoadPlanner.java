@@ -0,0 +1,126 @@
+/**
+ * UViewLoadPlanner — checks that a series will fit in memory before it is read.
+ *
+ * The UView Folder Reader calls it after the files, crop and binning are known and
+ * before any pixels are read. The peak memory of an eager load is estimated as the
+ * finished stack (width × height × slices at the binned size, 2 bytes a pixel, or
+ * 4 for the 32-bit slices of an accumulated load) plus the frames in flight in
+ * the parallel loader and the accumulator used for grouping, and compared with
+ * the heap that is still free ({@code Runtime.maxMemory()} minus what is already
+ * in use). If the load does not fit, the user can switch to a virtual stack or a
+ * coarser binning, or load anyway; the estimate and the choice are logged.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.gui.GenericDialog;
+
+import java.util.*;
+
+public class UViewLoadPlanner {
+
+	/** Part of the free heap the stack may use; the rest is left for ImageJ itself. */
+	private static final double HEADROOM = 0.8;
+
+	private static final int[] BINS = {1, 2, 4};
+
+	/** What to load: a virtual stack or not, and the region (crop and binning). */
+	static final class Plan {
+		final boolean virtual;
+		final UView_Folder_Reader.Region region;
+
+		Plan(boolean virtual, UView_Folder_Reader.Region region) {
+			this.virtual = virtual;
+			this.region  = region;
+		}
+	}
+
+	private UViewLoadPlanner() {
+	}
+
+	/**
+	 * Returns the plan for loading {@code nFiles} frames into {@code region}:
+	 * unchanged if they fit in memory (or a virtual stack was already chosen),
+	 * otherwise as chosen by the user. Returns null if the user cancels.
+	 *
+	 * @param crop the crop rectangle as entered, or null; kept when re-binning
+	 */
+	static Plan plan(UView_Folder_Reader.Region region, int[] crop, int nFiles,
+	                 UView_Folder_Reader.Grouping grouping, boolean parallel, boolean virtual) {
+		if (virtual) return new Plan(true, region);
+
+		long available = freeHeap();
+		long needed    = estimate(region, nFiles, grouping, parallel);
+		if (needed <= HEADROOM * available) return new Plan(false, region);
+
+		// candidate plans, in order of preference
+		List<String> choices = new ArrayList<>();
+		List<Plan>   plans   = new ArrayList<>();
+		String preferred = null;
+		if (grouping == null) {
+			choices.add("Virtual stack (read frames on demand)");
+			plans.add(new Plan(true, region));
+			preferred = choices.get(0);
+		}
+		for (int bin : BINS) {
+			if (bin <= region.bin) continue;
+			UView_Folder_Reader.Region binned;
+			try {
+				binned = UView_Folder_Reader.Region.of(region.frameWidth, region.frameHeight, crop, bin);
+			} catch (IllegalArgumentException e) {
+				continue;   // crop smaller than the binning
+			}
+			long bytes = estimate(binned, nFiles, grouping, parallel);
+			choices.add("Binned " + bin + "x" + bin + " (" + mb(bytes) + ")");
+			plans.add(new Plan(false, binned));
+			if (preferred == null && bytes <= HEADROOM * available)
+				preferred = choices.get(choices.size() - 1);
+		}
+		choices.add("Regular stack (may run out of memory)");
+		plans.add(new Plan(false, region));
+		if (preferred == null) preferred = choices.get(0);
+
+		GenericDialog gd = new GenericDialog("UView Folder Reader — memory");
+		gd.addMessage("The stack needs about " + mb(needed) + ", but only " + mb(available)
+				+ " of memory are free\n(maximum " + mb(Runtime.getRuntime().maxMemory())
+				+ ", see Edit > Options > Memory & Threads).");
+		gd.addChoice("Load as:", choices.toArray(new String[0]), preferred);
+		gd.showDialog();
+		if (gd.wasCanceled()) return null;
+		Plan plan = plans.get(gd.getNextChoiceIndex());
+
+		IJ.log("UView Folder Reader: estimated " + mb(needed) + " for " + nFiles + " frames, "
+				+ mb(available) + " free; loading as "
+				+ (plan.virtual ? "a virtual stack"
+						: plan.region.bin != region.bin ? plan.region.bin + "x" + plan.region.bin + " binned"
+						: "a regular stack") + ".");
+		return plan;
+	}
+
+	/** Peak heap used by an eager load of {@code nFiles} frames into {@code region}. */
+	static long estimate(UView_Folder_Reader.Region region, int nFiles,
+	                     UView_Folder_Reader.Grouping grouping, boolean parallel) {
+		long slice = 2L * region.outWidth * region.outHeight;     // 16-bit frame
+		long slices = nFiles;
+		if (grouping != null && grouping.count > 0)
+			slices = (nFiles + grouping.count - 1) / grouping.count;
+		// accumulated slices are 32-bit
+		long stackSlice = grouping != null ? 2 * slice : slice;
+		// frames decoded ahead by the parallel loader, waiting for their turn
+		long inFlight = parallel ? 4L * Runtime.getRuntime().availableProcessors() * slice : slice;
+		// double accumulator for the group being built
+		long accumulator = grouping != null ? 4 * slice : 0;
+		return slices * stackSlice + inFlight + accumulator;
+	}
+
+	/** Heap that can still be allocated: the maximum minus what is in use. */
+	static long freeHeap() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+	}
+
+	private static String mb(long bytes) {
+		return (bytes >> 20) + " MB";
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * UViewMeanCache — the ROI means of earlier runs of Plot Intensity vs Tag and
+ * Quick Normalize, so that a rerun with other formulas, tags or spectrum settings
+ * does not redo the arithmetic of every ROI.
+ *
+ * An entry is the series of one ROI on one stack: the raw mean and the pixel
+ * count of every slice, in primitive arrays. It is keyed by the ImageStack
+ * (by identity, weakly, so a closed stack is not kept alive) and the ROI's
+ * geometry, its runs of pixels (see {@link UViewRoiMeans#runs}), so a ROI that
+ * is moved or reshaped is a new entry and two ROIs with the same pixels share
+ * one.
+ *
+ * ImageJ keeps no modification count for a stack, so the cache follows the
+ * images itself. For a stack held in memory an entry records, on every slice, a
+ * checksum of every pixel under the ROI's runs; it is checked on each lookup,
+ * and the entry is measured again when any of those pixels changed. An
+ * ImageListener also drops the entries of an image when it is closed, and when
+ * it is updated and its stack was replaced, resized, or its current slice no
+ * longer matches. UView virtual stacks decode their slices from files that do
+ * not change, so their entries carry no checksum and only the listener and the
+ * stack size apply. Other virtual stacks may compute their slices in any way and
+ * are never cached.
+ *
+ * The cache holds at most {@link #MAX_VALUES} slice values (16 bytes each) and
+ * drops the least recently used series first.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+final class UViewMeanCache {
+
+	/** Slice values (a mean and a count) kept over all series: 32 MB. */
+	static final int MAX_VALUES = 1 << 21;
+
+	private static final ReferenceQueue<ImageStack> COLLECTED = new ReferenceQueue<>();
+
+	/** Access order: the eldest entry is the least recently used. */
+	private static final LinkedHashMap<Key, Series> SERIES = new LinkedHashMap<>(64, 0.75f, true);
+
+	private static long values;
+
+	static {
+		ImagePlus.addImageListener(new Listener());
+	}
+
+	private UViewMeanCache() {}
+
+	/** The image and stack a measurement is made on; see {@link #stamp}. */
+	static final class Stamp {
+		final int        image;    // ImagePlus ID
+		final ImageStack stack;
+
+		private Stamp(int image, ImageStack stack) {
+			this.image = image;
+			this.stack = stack;
+		}
+	}
+
+	private static final class Series {
+		final int      image;
+		final long[]   checksums;    // per slice; null for UView virtual stacks
+		final double[] means;
+		final long[]   counts;
+
+		Series(int image, long[] checksums, double[] means, long[] counts) {
+			this.image     = image;
+			this.checksums = checksums;
+			this.means     = means;
+			this.counts    = counts;
+		}
+
+		boolean matches(ImageStack stack, int[] runs) {
+			if (stack.getSize() != means.length) return false;
+			return checksums == null || Arrays.equals(checksums, checksums(stack, runs));
+		}
+	}
+
+	/** A stack, by identity, and the runs of a ROI on it. */
+	private static final class Key extends WeakReference<ImageStack> {
+		final int[] runs;
+		final int   hash;
+
+		Key(ImageStack stack, int[] runs, ReferenceQueue<ImageStack> queue) {
+			super(stack, queue);
+			this.runs = runs;
+			this.hash = 31 * System.identityHashCode(stack) + Arrays.hashCode(runs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			ImageStack stack = get();
+			return stack != null && stack == k.get() && hash == k.hash && Arrays.equals(runs, k.runs);
+		}
+	}
+
+	/** Drops the series of images that are closed or whose pixels changed. */
+	private static final class Listener implements ImageListener {
+		@Override
+		public void imageOpened(ImagePlus imp) {}
+
+		@Override
+		public void imageClosed(ImagePlus imp) {
+			evict(imp, true);
+		}
+
+		@Override
+		public void imageUpdated(ImagePlus imp) {
+			evict(imp, false);
+		}
+	}
+
+	/**
+	 * The stack of {@code imp} to look up and store series with, or null if its
+	 * series cannot be cached (virtual stacks other than UView ones).
+	 */
+	static Stamp stamp(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		if (stack.isVirtual() && !(stack instanceof UViewVirtualStack)) return null;
+		return new Stamp(imp.getID(), stack);
+	}
+
+	/** Per slice, a hash of every pixel in {@code runs}; null for virtual stacks. */
+	private static long[] checksums(ImageStack stack, int[] runs) {
+		if (stack.isVirtual()) return null;
+		long[] sums = new long[stack.getSize()];
+		for (int i = 1; i <= sums.length; i++) sums[i - 1] = checksum(stack.getPixels(i), runs);
+		return sums;
+	}
+
+	/** A hash of the pixels in {@code runs}; any change of a single pixel changes it. */
+	private static long checksum(Object pixels, int[] runs) {
+		long h = 1;
+		if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int j = 0; j < runs.length; j += 2)
+				for (int i = runs[j], end = i + runs[j + 1]; i < end; i++) h = 31 * h + p[i];
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int j = 0; j < runs.length; j += 2)
+				for (int i = runs[j], end = i + runs[j + 1]; i < end; i++) h = 31 * h + p[i];
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			for (int j = 0; j < runs.length; j += 2)
+				for (int i = runs[j], end = i + runs[j + 1]; i < end; i++) h = 31 * h + Float.floatToRawIntBits(p[i]);
+		} else if (pixels instanceof int[]) {
+			int[] p = (int[]) pixels;
+			for (int j = 0; j < runs.length; j += 2)
+				for (int i = runs[j], end = i + runs[j + 1]; i < end; i++) h = 31 * h + p[i];
+		}
+		return h;
+	}
+
+	/**
+	 * A copy of the means, per slice, of the ROI with {@code runs} on the stack of
+	 * {@code stamp}, or null if it was not measured with the pixels it has now.
+	 */
+	static synchronized double[] means(Stamp stamp, int[] runs) {
+		purge();
+		Key key = new Key(stamp.stack, runs, null);
+		Series s = SERIES.get(key);
+		if (s == null) return null;
+		if (s.matches(stamp.stack, runs)) return s.means.clone();
+		SERIES.remove(key);
+		values -= s.means.length;
+		return null;
+	}
+
+	/** Keeps copies of the means and counts of the ROI with {@code runs}, measured on the stack of {@code stamp}. */
+	static synchronized void put(Stamp stamp, int[] runs, double[] means, long[] counts) {
+		if (means.length > MAX_VALUES) return;
+		purge();
+		Series old = SERIES.put(new Key(stamp.stack, runs, COLLECTED),
+				new Series(stamp.image, checksums(stamp.stack, runs), means.clone(), counts.clone()));
+		if (old != null) values -= old.means.length;
+		values += means.length;
+		for (Iterator<Series> it = SERIES.values().iterator(); values > MAX_VALUES && it.hasNext(); ) {
+			values -= it.next().means.length;
+			it.remove();
+		}
+	}
+
+	/** Forgets all series. */
+	static synchronized void clear() {
+		SERIES.clear();
+		values = 0;
+	}
+
+	/** Number of slice values held. */
+	static synchronized long size() {
+		return values;
+	}
+
+	/**
+	 * Drops the series measured on {@code imp}: all of them if it was
+	 * {@code closed}, else those whose stack it no longer shows, whose stack
+	 * changed size, or whose checksum of the current slice no longer matches.
+	 */
+	private static synchronized void evict(ImagePlus imp, boolean closed) {
+		purge();
+		ImageStack current = closed ? null : imp.getStack();
+		int slice = closed ? 0 : imp.getCurrentSlice();
+		for (Iterator<Map.Entry<Key, Series>> it = SERIES.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Key, Series> e = it.next();
+			Series s = e.getValue();
+			if (s.image != imp.getID()) continue;
+			ImageStack stack = e.getKey().get();
+			if (!closed && stack == current && stack.getSize() == s.means.length
+					&& (s.checksums == null || slice < 1 || slice > s.checksums.length
+						|| s.checksums[slice - 1] == checksum(stack.getPixels(slice), e.getKey().runs)))
+				continue;
+			values -= s.means.length;
+			it.remove();
+		}
+	}
+
+	/** Drops the series of stacks that have been garbage collected. */
+	private static void purge() {
+		for (Object k; (k = COLLECTED.poll()) != null; ) {
+			Series s = SERIES.remove(k);
+			if (s != null) values -= s.means.length;
+		}
+	}
+}
@@ -0,0 +1,487 @@
+/**
+ * UViewRoiMeans — the mean intensity of several ROIs on every slice of a stack, in
+ * one pass over the pixels of each slice.
+ *
+ * Each ROI is rasterised once into runs of consecutive pixels (offset, length),
+ * clipped to the image. The runs of all ROIs are merged in pixel order, so that a
+ * slice is read front to back, straight from the stack's pixel array, without
+ * selecting the slice in the ImagePlus or building a mask per ROI and slice.
+ *
+ * The means are those ImageStatistics gives with Measurements.MEAN: 8- and
+ * 16-bit pixels are summed exactly, 32-bit pixels are summed in the same order as
+ * ImageJ does and NaN and infinite values are left out. Images that ImageJ would
+ * measure differently (a calibration function, RGB) and ROIs that are not areas
+ * (lines, points) are measured with ImageStatistics instead, see {@link #measure}.
+ *
+ * In ROI grid mode, meant for grids of hundreds or thousands of rectangular ROIs
+ * on 8- or 16-bit stacks, a summed-area table of each slice is built once (one
+ * pass over the pixels, into a long[] reused over the slices of one measurement,
+ * or of one task in parallel mode, and then dropped), and the sum over any
+ * rectangle is then four lookups. ROIs that are not plain rectangles are still
+ * summed from their runs. The sums are exact either way, so the means do not depend on
+ * the mode; 32-bit stacks always use the runs.
+ *
+ * In parallel mode the slices are split across the common ForkJoin pool; each
+ * worker reads its slices from the ImageStack (or from a UView virtual stack,
+ * whose cache is shared safely) without touching the ImagePlus, so the means are
+ * the same as in sequential mode.
+ *
+ * With the cache on, the series of each ROI is kept in UViewMeanCache and a
+ * rerun on the same, unchanged stack only measures the ROIs it has not seen.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+final class UViewRoiMeans {
+
+	private final int   nRois;
+	private final int[] start, length, roi;     // merged runs, in pixel order
+	private final long[] count;                 // pixels per ROI
+	private final int   width, height;
+	private final int[] rectRoi, rectX0, rectY0, rectX1, rectY1;   // ROI grid mode: rectangles, clipped
+
+	/**
+	 * {@code runsPerRoi} holds the runs of each ROI; with {@code rects} non-null,
+	 * the ROIs with a rectangle {x0, y0, x1, y1} there are summed from the
+	 * summed-area table and their runs are only used for the pixel count.
+	 */
+	private UViewRoiMeans(List<int[]> runsPerRoi, int[][] rects, int width, int height) {
+		nRois = runsPerRoi.size();
+		count = new long[nRois];
+		this.width  = width;
+		this.height = height;
+		int nRects = 0;
+		if (rects != null)
+			for (int[] r : rects) if (r != null) nRects++;
+		rectRoi = new int[nRects];
+		rectX0  = new int[nRects];
+		rectY0  = new int[nRects];
+		rectX1  = new int[nRects];
+		rectY1  = new int[nRects];
+		for (int r = 0, k = 0; r < nRois && nRects > 0; r++) {
+			if (rects[r] == null) continue;
+			rectRoi[k] = r;
+			rectX0[k]  = rects[r][0];
+			rectY0[k]  = rects[r][1];
+			rectX1[k]  = rects[r][2];
+			rectY1[k]  = rects[r][3];
+			k++;
+		}
+		int total = 0;
+		for (int r = 0; r < nRois; r++) {
+			int[] runs = runsPerRoi.get(r);
+			if (rects != null && rects[r] != null) {
+				for (int j = 1; j < runs.length; j += 2) count[r] += runs[j];
+			} else {
+				total += runs.length / 2;
+			}
+		}
+		// sort key: offset in the high half, run number in the low half
+		long[] keys = new long[total];
+		int[] runStart = new int[total], runLength = new int[total], runRoi = new int[total];
+		int k = 0;
+		for (int r = 0; r < nRois; r++) {
+			if (rects != null && rects[r] != null) continue;
+			int[] runs = runsPerRoi.get(r);
+			for (int j = 0; j < runs.length; j += 2, k++) {
+				runStart[k]  = runs[j];
+				runLength[k] = runs[j + 1];
+				runRoi[k]    = r;
+				count[r]    += runs[j + 1];
+				keys[k]      = ((long) runs[j] << 32) | k;
+			}
+		}
+		Arrays.sort(keys);
+		start  = new int[total];
+		length = new int[total];
+		roi    = new int[total];
+		for (int j = 0; j < total; j++) {
+			int from = (int) keys[j];
+			start[j]  = runStart[from];
+			length[j] = runLength[from];
+			roi[j]    = runRoi[from];
+		}
+	}
+
+	/**
+	 * The engine for {@code rois} (null for the whole image) on {@code imp}, or
+	 * null if ImageStatistics has to be used for this image or one of the ROIs.
+	 */
+	static UViewRoiMeans of(ImagePlus imp, List<Roi> rois) {
+		return of(imp, rois, false);
+	}
+
+	/** As {@link #of(ImagePlus, List)}, in ROI grid mode if {@code grid}. */
+	static UViewRoiMeans of(ImagePlus imp, List<Roi> rois, boolean grid) {
+		List<int[]> runs = runs(imp, rois);
+		return runs == null ? null : of(imp, rois, runs, grid);
+	}
+
+	/** The engine for {@code rois}, whose runs are {@code runs}. */
+	private static UViewRoiMeans of(ImagePlus imp, List<Roi> rois, List<int[]> runs, boolean grid) {
+		int w = imp.getWidth(), h = imp.getHeight();
+		int[][] rects = null;
+		if (grid && imp.getBitDepth() != 32) {
+			rects = new int[rois.size()][];
+			for (int k = 0; k < rois.size(); k++) rects[k] = rectangle(rois.get(k), w, h);
+		}
+		return new UViewRoiMeans(runs, rects, w, h);
+	}
+
+	/**
+	 * The runs of each of {@code rois} (null for the whole image) on {@code imp},
+	 * or null if ImageStatistics has to be used for this image or one of the ROIs.
+	 */
+	static List<int[]> runs(ImagePlus imp, List<Roi> rois) {
+		if (imp.getBitDepth() == 24) return null;
+		Calibration cal = imp.getCalibration();
+		if (cal != null && cal.calibrated()) return null;
+		int w = imp.getWidth(), h = imp.getHeight();
+		List<int[]> runs = new ArrayList<>();
+		for (Roi r : rois) {
+			if (r != null && !r.isArea()) return null;
+			runs.add(runs(r, w, h));
+		}
+		return runs;
+	}
+
+	/** {x0, y0, x1, y1} of a plain rectangle (or the whole image for null), clipped; else null. */
+	private static int[] rectangle(Roi roi, int width, int height) {
+		if (roi == null) return new int[] {0, 0, width, height};
+		if (roi.getMask() != null) return null;
+		Rectangle b = roi.getBounds();
+		int x0 = Math.min(width,  Math.max(0, b.x)), x1 = Math.max(x0, Math.min(width,  b.x + b.width));
+		int y0 = Math.min(height, Math.max(0, b.y)), y1 = Math.max(y0, Math.min(height, b.y + b.height));
+		return new int[] {x0, y0, x1, y1};
+	}
+
+	/**
+	 * The pixels of {@code roi} as (offset, length) pairs, row by row, clipped to
+	 * a {@code width} x {@code height} image. A null ROI is the whole image.
+	 */
+	static int[] runs(Roi roi, int width, int height) {
+		if (roi == null) return new int[] {0, width * height};
+		Rectangle b = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		byte[] m  = mask == null ? null : (byte[]) mask.getPixels();
+		int    mw = mask == null ? 0 : mask.getWidth();
+		int x0 = Math.max(0, b.x), x1 = Math.min(width,  b.x + b.width);
+		int y0 = Math.max(0, b.y), y1 = Math.min(height, b.y + b.height);
+		int[] runs = new int[16];
+		int n = 0;
+		for (int y = y0; y < y1; y++) {
+			int x = x0;
+			while (x < x1) {
+				if (m != null) {
+					int row = (y - b.y) * mw - b.x;
+					while (x < x1 && m[row + x] == 0) x++;
+					if (x == x1) break;
+					int from = x;
+					while (x < x1 && m[row + x] != 0) x++;
+					if (n + 2 > runs.length) runs = Arrays.copyOf(runs, 2 * runs.length);
+					runs[n++] = y * width + from;
+					runs[n++] = x - from;
+				} else {
+					if (n + 2 > runs.length) runs = Arrays.copyOf(runs, 2 * runs.length);
+					runs[n++] = y * width + x;
+					runs[n++] = x1 - x;
+					x = x1;
+				}
+			}
+		}
+		return Arrays.copyOf(runs, n);
+	}
+
+	int rois() {
+		return nRois;
+	}
+
+	/** Number of pixels of ROI {@code r} in the image. */
+	long count(int r) {
+		return count[r];
+	}
+
+	/**
+	 * Stores in {@code out} the mean of each ROI on one slice, given as its pixel
+	 * array (byte[], short[] or float[]). A ROI without pixels gets NaN. Safe to
+	 * call from several threads at once.
+	 */
+	void means(Object pixels, double[] out) {
+		means(pixels, out, null, scratch());
+	}
+
+	/**
+	 * As {@link #means(Object, double[])}, also storing in {@code counts}, if not
+	 * null, the number of pixels each mean is over (on 32-bit slices, without the
+	 * NaN and infinite ones). {@code table} is the {@link #scratch} of the calling
+	 * thread, reused from slice to slice.
+	 */
+	void means(Object pixels, double[] out, long[] counts, long[] table) {
+		double[] sum = new double[nRois];
+		if (rectRoi.length > 0 && !(pixels instanceof float[])) {
+			long[] t = table(pixels, table);
+			int    w = width + 1;
+			for (int k = 0; k < rectRoi.length; k++) {
+				int a = rectY0[k] * w, b = rectY1[k] * w;
+				sum[rectRoi[k]] = t[b + rectX1[k]] - t[b + rectX0[k]] - t[a + rectX1[k]] + t[a + rectX0[k]];
+			}
+		}
+		if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int j = 0; j < start.length; j++) {
+				long s = 0;
+				for (int i = start[j], end = i + length[j]; i < end; i++) s += p[i] & 0xFFFF;
+				sum[roi[j]] += s;
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int j = 0; j < start.length; j++) {
+				long s = 0;
+				for (int i = start[j], end = i + length[j]; i < end; i++) s += p[i] & 0xFF;
+				sum[roi[j]] += s;
+			}
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			long[] n = new long[nRois];
+			for (int j = 0; j < start.length; j++) {
+				int r = roi[j];
+				double s = sum[r];
+				long   c = 0;
+				for (int i = start[j], end = i + length[j]; i < end; i++) {
+					float v = p[i];
+					if (v >= -Float.MAX_VALUE && v <= Float.MAX_VALUE) {
+						s += v;
+						c++;
+					}
+				}
+				sum[r] = s;
+				n[r]  += c;
+			}
+			for (int r = 0; r < nRois; r++) out[r] = sum[r] / n[r];
+			if (counts != null) System.arraycopy(n, 0, counts, 0, nRois);
+			return;
+		} else {
+			throw new IllegalArgumentException("Unsupported pixel type "
+					+ (pixels == null ? "null" : pixels.getClass().getSimpleName()));
+		}
+		for (int r = 0; r < nRois; r++) out[r] = sum[r] / count[r];
+		if (counts != null) System.arraycopy(count, 0, counts, 0, nRois);
+	}
+
+	/**
+	 * Room for the summed-area table of one slice, (width+1) x (height+1), or null
+	 * if no ROI is summed from it. Each thread measuring slices needs its own.
+	 */
+	long[] scratch() {
+		return rectRoi.length > 0 ? new long[(width + 1) * (height + 1)] : null;
+	}
+
+	/**
+	 * The summed-area table of {@code pixels} (byte[] or short[]), built in
+	 * {@code t}: entry (y, x) of the (width+1)-wide table is the sum over rows 0
+	 * to y-1 and columns 0 to x-1.
+	 */
+	private long[] table(Object pixels, long[] t) {
+		int w = width + 1;
+		Arrays.fill(t, 0, w, 0);
+		short[] sp = pixels instanceof short[] ? (short[]) pixels : null;
+		byte[]  bp = sp == null ? (byte[]) pixels : null;
+		for (int y = 0; y < height; y++) {
+			int  o = y * width, above = y * w, row = above + w;
+			long s = 0;
+			t[row] = 0;
+			if (sp != null) {
+				for (int x = 0; x < width; x++) {
+					s += sp[o + x] & 0xFFFF;
+					t[row + x + 1] = t[above + x + 1] + s;
+				}
+			} else {
+				for (int x = 0; x < width; x++) {
+					s += bp[o + x] & 0xFF;
+					t[row + x + 1] = t[above + x + 1] + s;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * The means of {@code rois} on every slice of {@code imp}, as [ROI][slice - 1],
+	 * reading each slice once. Falls back to ImageStatistics, slice by slice, where
+	 * the engine does not apply. {@code progress} is told each slice done.
+	 */
+	static double[][] measure(ImagePlus imp, List<Roi> rois, IntConsumer progress) {
+		return measure(imp, rois, false, false, progress);
+	}
+
+	/**
+	 * As {@link #measure(ImagePlus, List, IntConsumer)}, on all cores if
+	 * {@code parallel} and the stack can be read from several threads, and in
+	 * ROI grid mode if {@code grid}. In parallel mode {@code progress} is called
+	 * from the worker threads, with the number of slices done so far.
+	 */
+	static double[][] measure(ImagePlus imp, List<Roi> rois, boolean parallel, boolean grid,
+	                          IntConsumer progress) {
+		final double[][] means = new double[rois.size()][imp.getStackSize()];
+		measure(imp, rois, of(imp, rois, grid), parallel, means, null, progress);
+		return means;
+	}
+
+	/**
+	 * As {@link #measure(ImagePlus, List, boolean, boolean, IntConsumer)}, and if
+	 * {@code cached}, the ROIs measured before on the same, unchanged stack are
+	 * taken from UViewMeanCache and only the others are measured (and kept there).
+	 * Images the engine does not apply to, and virtual stacks other than UView
+	 * ones, are always measured.
+	 */
+	static double[][] measure(ImagePlus imp, List<Roi> rois, boolean parallel, boolean grid,
+	                          boolean cached, IntConsumer progress) {
+		final UViewMeanCache.Stamp stamp = cached ? UViewMeanCache.stamp(imp) : null;
+		final List<int[]> runs = stamp != null ? runs(imp, rois) : null;
+		if (runs == null) return measure(imp, rois, parallel, grid, progress);
+		final int n = imp.getStackSize();
+		final double[][]    means    = new double[rois.size()][];
+		final List<Integer> missing  = new ArrayList<>();
+		final List<Roi>     roisToDo = new ArrayList<>();
+		final List<int[]>   runsToDo = new ArrayList<>();
+		for (int r = 0; r < rois.size(); r++) {
+			means[r] = UViewMeanCache.means(stamp, runs.get(r));
+			if (means[r] != null) continue;
+			missing.add(r);
+			roisToDo.add(rois.get(r));
+			runsToDo.add(runs.get(r));
+		}
+		UViewTimings.add(UViewTimings.Counter.ROI_SERIES_CACHED,   rois.size() - missing.size());
+		UViewTimings.add(UViewTimings.Counter.ROI_SERIES_MEASURED, missing.size());
+		if (missing.isEmpty()) {
+			progress.accept(n);
+			return means;
+		}
+		final double[][] measured = new double[missing.size()][n];
+		final long[][]   counts   = new long[missing.size()][n];
+		measure(imp, roisToDo, of(imp, roisToDo, runsToDo, grid), parallel, measured, counts, progress);
+		for (int k = 0; k < missing.size(); k++) {
+			means[missing.get(k)] = measured[k];
+			UViewMeanCache.put(stamp, runsToDo.get(k), measured[k], counts[k]);
+		}
+		return means;
+	}
+
+	/**
+	 * Stores the means of {@code rois} in {@code means}, and with the engine their
+	 * pixel counts in {@code counts} if not null, both as [ROI][slice - 1].
+	 */
+	private static void measure(ImagePlus imp, List<Roi> rois, UViewRoiMeans engine, boolean parallel,
+	                            double[][] means, long[][] counts, IntConsumer progress) {
+		final int n = imp.getStackSize();
+		final ImageStack stack = imp.getStack();
+		if (parallel && n > 1 && ForkJoinPool.getCommonPoolParallelism() > 1
+				&& (!stack.isVirtual() || stack instanceof UViewVirtualStack)) {
+			int grain = Math.max(1, n / (8 * ForkJoinPool.getCommonPoolParallelism()));
+			ForkJoinPool.commonPool().invoke(new Slices(engine, stack, rois, imp.getCalibration(),
+					means, counts, 1, n + 1, grain, new AtomicInteger(), progress));
+			return;
+		}
+		if (engine != null) {
+			final double[] slice = new double[rois.size()];
+			final long[]   count = counts == null ? null : new long[rois.size()];
+			final long[]   table = engine.scratch();
+			for (int i = 1; i <= n; i++) {
+				engine.means(stack.getPixels(i), slice, count, table);
+				for (int r = 0; r < slice.length; r++) means[r][i - 1] = slice[r];
+				if (count != null)
+					for (int r = 0; r < count.length; r++) counts[r][i - 1] = count[r];
+				progress.accept(i);
+			}
+			return;
+		}
+		final int savedSlice = imp.getCurrentSlice();
+		for (int i = 1; i <= n; i++) {
+			imp.setSliceWithoutUpdate(i);
+			final ImageProcessor ip = imp.getProcessor();
+			for (int r = 0; r < rois.size(); r++) {
+				ip.setRoi(rois.get(r));
+				means[r][i - 1] = ImageStatistics.getStatistics(
+						ip, Measurements.MEAN, imp.getCalibration()).mean;
+			}
+			progress.accept(i);
+		}
+		imp.setSlice(savedSlice);
+	}
+
+	/** Slices {@code from} to {@code to - 1}, split in halves down to {@code grain} slices. */
+	private static final class Slices extends RecursiveAction {
+		private final UViewRoiMeans engine;           // null: ImageStatistics
+		private final ImageStack    stack;
+		private final List<Roi>     rois;
+		private final Calibration   cal;
+		private final double[][]    means;
+		private final long[][]      counts;           // null: not wanted
+		private final int           from, to, grain;
+		private final AtomicInteger done;
+		private final IntConsumer   progress;
+
+		Slices(UViewRoiMeans engine, ImageStack stack, List<Roi> rois, Calibration cal,
+		       double[][] means, long[][] counts, int from, int to, int grain, AtomicInteger done,
+		       IntConsumer progress) {
+			this.engine   = engine;
+			this.stack    = stack;
+			this.rois     = rois;
+			this.cal      = cal;
+			this.means    = means;
+			this.counts   = counts;
+			this.from     = from;
+			this.to       = to;
+			this.grain    = grain;
+			this.done     = done;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Slices(engine, stack, rois, cal, means, counts, from, mid, grain, done, progress),
+				          new Slices(engine, stack, rois, cal, means, counts, mid, to, grain, done, progress));
+				return;
+			}
+			double[] slice = new double[means.length];
+			long[]   count = counts == null ? null : new long[means.length];
+			long[]   table = engine == null ? null : engine.scratch();
+			// ROIs cache their masks; each worker measures with its own copies
+			List<Roi> own = new ArrayList<>();
+			if (engine == null)
+				for (Roi r : rois) own.add(r == null ? null : (Roi) r.clone());
+			for (int i = from; i < to; i++) {
+				if (engine != null) {
+					engine.means(stack.getPixels(i), slice, count, table);
+				} else {
+					ImageProcessor ip = stack.getProcessor(i);
+					for (int r = 0; r < own.size(); r++) {
+						ip.setRoi(own.get(r));
+						slice[r] = ImageStatistics.getStatistics(ip, Measurements.MEAN, cal).mean;
+					}
+				}
+				for (int r = 0; r < slice.length; r++) means[r][i - 1] = slice[r];
+				if (count != null)
+					for (int r = 0; r < count.length; r++) counts[r][i - 1] = count[r];
+				progress.accept(done.incrementAndGet());
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * UViewTagQuery — a filter on the metadata tags of UView files.
+ *
+ * A query is a list of conditions separated by semicolons, all of which must hold:
+ * <pre>
+ *   Start Voltage (V) = 2..8        inclusive range
+ *   CameraExposure = 0.5            equality (numeric, or text for non-numeric tags)
+ *   Temperature (°C) &gt;= 300        also &lt;, &lt;=, &gt;, !=
+ * </pre>
+ * Numeric comparisons use the leading number of the tag value, so units such as
+ * "0.5000 s" are ignored. Since the header values are stored with four significant
+ * digits, equality and range limits allow for that rounding. A file that does not
+ * have the tag never matches.
+ *
+ * @author Juan de la Figuera
+ */
+
+import java.util.*;
+import java.util.function.Function;
+
+public class UViewTagQuery {
+
+	/** Relative tolerance matching the 4 significant digits of the slice labels. */
+	private static final double TOLERANCE = 5e-4;
+
+	private static final String[] OPERATORS = {"<=", ">=", "!=", "=", "<", ">"};
+
+	private static class Condition {
+		String key, op, text;
+		double value, upper;   // upper is only used for ranges (op "..")
+	}
+
+	private final List<Condition> conditions = new ArrayList<>();
+
+	private UViewTagQuery() {
+	}
+
+	/**
+	 * Parses a query; an empty or blank text gives a query that matches everything.
+	 *
+	 * @throws IllegalArgumentException if a condition cannot be parsed
+	 */
+	public static UViewTagQuery parse(String text) {
+		UViewTagQuery q = new UViewTagQuery();
+		for (String part : text.split(";")) {
+			part = part.trim();
+			if (part.isEmpty()) continue;
+			q.conditions.add(parseCondition(part));
+		}
+		return q;
+	}
+
+	private static Condition parseCondition(String part) {
+		int at = -1;
+		String op = null;
+		for (int i = 0; i < part.length() && op == null; i++)
+			for (String candidate : OPERATORS)
+				if (part.startsWith(candidate, i)) {
+					at = i;
+					op = candidate;
+					break;
+				}
+		if (op == null || at == 0)
+			throw new IllegalArgumentException("Expected <tag> <operator> <value> in \"" + part + "\"");
+
+		Condition c = new Condition();
+		c.key  = part.substring(0, at).trim();
+		c.text = part.substring(at + op.length()).trim();
+		c.op   = op;
+		if (c.text.isEmpty())
+			throw new IllegalArgumentException("Missing value in \"" + part + "\"");
+
+		int range = c.text.indexOf("..");
+		if (op.equals("=") && range >= 0) {
+			c.op    = "..";
+			c.value = parseNumber(c.text.substring(0, range), part);
+			c.upper = parseNumber(c.text.substring(range + 2), part);
+		} else if (op.equals("=") || op.equals("!=")) {
+			Double v = leadingNumber(c.text);
+			c.value = v != null ? v : Double.NaN;
+		} else {
+			c.value = parseNumber(c.text, part);
+		}
+		return c;
+	}
+
+	private static double parseNumber(String s, String part) {
+		Double v = leadingNumber(s.trim());
+		if (v == null)
+			throw new IllegalArgumentException("Not a number: \"" + s.trim() + "\" in \"" + part + "\"");
+		return v;
+	}
+
+	public boolean isEmpty() {
+		return conditions.isEmpty();
+	}
+
+	/** Evaluates the query; {@code tags} returns the value of a tag, or null if absent. */
+	public boolean matches(Function<String, String> tags) {
+		for (Condition c : conditions) {
+			String raw = tags.apply(c.key);
+			if (raw == null || !holds(c, raw.trim())) return false;
+		}
+		return true;
+	}
+
+	private static boolean holds(Condition c, String raw) {
+		Double v = leadingNumber(raw);
+		if (v == null || Double.isNaN(c.value)) {
+			// text comparison, only meaningful for = and !=
+			if (c.op.equals("="))  return raw.equals(c.text);
+			if (c.op.equals("!=")) return !raw.equals(c.text);
+			return false;
+		}
+		double x = v;
+		switch (c.op) {
+		case "..": return x >= c.value - tol(c.value) && x <= c.upper + tol(c.upper);
+		case "=":  return Math.abs(x - c.value) <= tol(c.value);
+		case "!=": return Math.abs(x - c.value) >  tol(c.value);
+		case "<":  return x <  c.value;
+		case "<=": return x <= c.value + tol(c.value);
+		case ">":  return x >  c.value;
+		case ">=": return x >= c.value - tol(c.value);
+		default:   return false;
+		}
+	}
+
+	private static double tol(double v) {
+		return TOLERANCE * Math.abs(v);
+	}
+
+	/** Parses the number at the start of {@code s} (e.g. "0.5000 s"), or returns null. */
+	static Double leadingNumber(String s) {
+		int end = 0;
+		while (end < s.length()) {
+			char ch = s.charAt(end);
+			if (Character.isDigit(ch) || ch == '.' || ch == '-' || ch == '+'
+					|| ch == 'e' || ch == 'E') end++;
+			else break;
+		}
+		while (end > 0) {
+			try {
+				return Double.parseDouble(s.substring(0, end));
+			} catch (NumberFormatException e) {
+				end--;   // e.g. a trailing "e" that was not an exponent
+			}
+		}
+		return null;
+	}
+}
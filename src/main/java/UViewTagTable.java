@@ -0,0 +1,117 @@
+/**
+ * UViewTagTable — the numeric metadata of a stack, one column per tag.
+ *
+ * The UView readers attach it to the ImagePlus they open (property
+ * {@value #PROPERTY}), with the tag values at the precision stored in the files
+ * rather than the four significant digits of the slice labels, which are kept
+ * for display. Plot Intensity vs Tag and Quick Normalize take tag names and
+ * values from the table. For other stacks, or when slices have been added or
+ * removed since the stack was opened, {@link #forImage} builds the table once
+ * from the slice labels instead.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+
+import java.util.*;
+
+public class UViewTagTable {
+
+	public static final String PROPERTY = "UView.tags";
+
+	private final LinkedHashMap<String, double[]> columns = new LinkedHashMap<>();
+	private int size;
+
+	/** Appends the values of the next slice; tags it does not have are NaN. */
+	public synchronized void addRow(Map<String, Double> values) {
+		for (Map.Entry<String, Double> e : values.entrySet()) {
+			double[] col = columns.get(e.getKey());
+			if (col == null) {
+				col = new double[Math.max(16, size + 1)];
+				Arrays.fill(col, Double.NaN);
+				columns.put(e.getKey(), col);
+			}
+		}
+		for (Map.Entry<String, double[]> e : columns.entrySet()) {
+			double[] col = e.getValue();
+			if (col.length == size) {
+				int from = col.length;
+				col = Arrays.copyOf(col, 2 * size);
+				Arrays.fill(col, from, col.length, Double.NaN);
+				e.setValue(col);
+			}
+			Double v = values.get(e.getKey());
+			col[size] = v != null ? v : Double.NaN;
+		}
+		size++;
+	}
+
+	/** Number of slices. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** The tag names, in the order in which they first appeared. */
+	public synchronized List<String> tags() {
+		return new ArrayList<>(columns.keySet());
+	}
+
+	public synchronized boolean hasTag(String tag) {
+		return columns.containsKey(tag);
+	}
+
+	/** The values of {@code tag} for all slices (NaN where missing), or null for an unknown tag. */
+	public synchronized double[] column(String tag) {
+		double[] col = columns.get(tag);
+		return col == null ? null : Arrays.copyOf(col, size);
+	}
+
+	/** The value of {@code tag} in slice {@code slice} (1-based), or NaN. */
+	public synchronized double get(String tag, int slice) {
+		double[] col = columns.get(tag);
+		return col == null || slice < 1 || slice > size ? Double.NaN : col[slice - 1];
+	}
+
+	/**
+	 * The table attached to {@code imp} if it still matches the stack, or else a
+	 * table built from the slice labels.
+	 */
+	public static UViewTagTable forImage(ImagePlus imp) {
+		Object p = imp.getProperty(PROPERTY);
+		if (p instanceof UViewTagTable && ((UViewTagTable) p).size() == imp.getStackSize())
+			return (UViewTagTable) p;
+		return fromLabels(imp.getStack());
+	}
+
+	/** Builds a table from the numeric key=value lines of the slice labels. */
+	public static UViewTagTable fromLabels(ImageStack stack) {
+		UViewTagTable table = new UViewTagTable();
+		Map<String, Double> row = new LinkedHashMap<>();
+		for (int i = 1; i <= stack.getSize(); i++) {
+			row.clear();
+			String label = stack.getSliceLabel(i);
+			if (label != null) {
+				for (String line : label.split("\n")) {
+					int eq = line.indexOf('=');
+					if (eq <= 0) continue;
+					try {
+						row.put(line.substring(0, eq).trim(),
+								Double.parseDouble(line.substring(eq + 1).trim()));
+					} catch (NumberFormatException e) {
+						// not numeric (e.g. Date)
+					}
+				}
+			}
+			table.addRow(row);
+		}
+		return table;
+	}
+
+	/** The numeric values of a frame's header tags and CSV tags, as one row. */
+	static Map<String, Double> row(Map<String, Double> headerValues, Map<String, Double> csvValues) {
+		Map<String, Double> row = new LinkedHashMap<>(headerValues);
+		if (csvValues != null) row.putAll(csvValues);
+		return row;
+	}
+}
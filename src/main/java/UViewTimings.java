@@ -0,0 +1,268 @@
+/**
+ * UViewTimings — wall time, throughput and allocation of the LEEMandPEEM commands,
+ * per phase of each run, plus process-wide counters.
+ *
+ * Each command run is a UViewTimings with named phases (for the folder reader:
+ * scan, index and CSV, headers, read, show). A phase accumulates its wall time, the bytes
+ * and frames it read and the bytes allocated while it ran, on the calling thread
+ * and on the workers that report them. The last run of every command is kept
+ * and can be shown with Plugins > LEEMandPEEM > UView Timings, or logged at the
+ * end of each run.
+ *
+ * The counters are monotonic totals since Fiji started, updated by the
+ * decoding code whatever thread it runs on: bytes and frames read, headers
+ * parsed, and the time spent in I/O, in the flip/binning copy and in header
+ * parsing (summed over threads, so it can exceed the wall time of a parallel
+ * load), and the ROI series (one ROI over a stack) measured from the pixels or
+ * taken from UViewMeanCache. Scripts can poll them to follow the throughput
+ * during a beamtime:
+ * <pre>
+ *   long before = UViewTimings.get(UViewTimings.Counter.BYTES_READ);
+ *   ...
+ *   UViewTimings last = UViewTimings.last("UView Folder Reader");
+ *   for (UViewTimings.Phase p : last.phases()) print(p.name() + " " + p.millis());
+ * </pre>
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class UViewTimings {
+
+	static final String PREF_LOG = "LEEMandPEEM.timings.log";
+
+	/** Process-wide counters, see {@link #get}. */
+	public enum Counter {
+		BYTES_READ, FRAMES_READ, HEADERS_PARSED, IO_NANOS, DECODE_NANOS, HEADER_NANOS, ALLOCATED_BYTES,
+		ROI_SERIES_MEASURED, ROI_SERIES_CACHED
+	}
+
+	private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+	static {
+		for (int i = 0; i < COUNTERS.length; i++) COUNTERS[i] = new LongAdder();
+	}
+
+	private static final Map<String, UViewTimings> LAST = new ConcurrentHashMap<>();
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	public static void add(Counter c, long delta) {
+		COUNTERS[c.ordinal()].add(delta);
+	}
+
+	/** Total of {@code c} since the plugins were loaded. */
+	public static long get(Counter c) {
+		return COUNTERS[c.ordinal()].sum();
+	}
+
+	/** All counters, by name. */
+	public static Map<String, Long> counters() {
+		Map<String, Long> all = new LinkedHashMap<>();
+		for (Counter c : Counter.values()) all.put(c.name(), get(c));
+		return all;
+	}
+
+	/**
+	 * Bytes allocated so far by the calling thread, or -1 when the JVM does not
+	 * report it. Workers add the difference over a task to ALLOCATED_BYTES.
+	 */
+	public static long threadAllocatedBytes() {
+		if (THREADS == null) return -1;
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** The last finished run of {@code command}, or null. */
+	public static UViewTimings last(String command) {
+		return LAST.get(command);
+	}
+
+	/** The last finished run of every command. */
+	public static List<UViewTimings> lastRuns() {
+		List<UViewTimings> runs = new ArrayList<>(LAST.values());
+		runs.sort(Comparator.comparingLong(r -> r.started));
+		return runs;
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		try {
+			ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+			if (!(mx instanceof com.sun.management.ThreadMXBean)) return null;
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+			if (!sun.isThreadAllocatedMemorySupported()) return null;
+			if (!sun.isThreadAllocatedMemoryEnabled()) sun.setThreadAllocatedMemoryEnabled(true);
+			return sun;
+		} catch (LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * One phase of a run. {@link #start} and {@link #stop} may be called several
+	 * times, e.g. around each slice; the totals add up.
+	 */
+	public static final class Phase implements AutoCloseable {
+		private final String name;
+		private long nanos, bytes, frames, allocated;
+		private long ioNanos, decodeNanos, headerNanos;
+		private final long[] mark = new long[Counter.values().length];
+		private long markNanos, markAlloc;
+		private boolean running;
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		public Phase start() {
+			if (running) return this;
+			for (Counter c : Counter.values()) mark[c.ordinal()] = get(c);
+			markAlloc = threadAllocatedBytes();
+			markNanos = System.nanoTime();
+			running   = true;
+			return this;
+		}
+
+		public void stop() {
+			if (!running) return;
+			nanos += System.nanoTime() - markNanos;
+			running = false;
+			long own = markAlloc < 0 ? 0 : threadAllocatedBytes() - markAlloc;
+			allocated   += own + delta(Counter.ALLOCATED_BYTES);
+			add(Counter.ALLOCATED_BYTES, own);
+			bytes       += delta(Counter.BYTES_READ);
+			frames      += delta(Counter.FRAMES_READ);
+			ioNanos     += delta(Counter.IO_NANOS);
+			decodeNanos += delta(Counter.DECODE_NANOS);
+			headerNanos += delta(Counter.HEADER_NANOS);
+		}
+
+		@Override
+		public void close() {
+			stop();
+		}
+
+		/** Counts bytes that do not go through the decoding code, e.g. a CSV file. */
+		public void addBytes(long n) {
+			bytes += n;
+		}
+
+		/** Counts frames processed in this phase, e.g. slices measured. */
+		public void addFrames(long n) {
+			frames += n;
+		}
+
+		private long delta(Counter c) {
+			return get(c) - mark[c.ordinal()];
+		}
+
+		public String name()           { return name; }
+		public double millis()         { return nanos / 1e6; }
+		public long   bytes()          { return bytes; }
+		public long   frames()         { return frames; }
+		public long   allocatedBytes() { return allocated; }
+		public double ioMillis()       { return ioNanos / 1e6; }
+		public double decodeMillis()   { return decodeNanos / 1e6; }
+		public double headerMillis()   { return headerNanos / 1e6; }
+
+		public double megabytesPerSecond() {
+			return nanos > 0 ? bytes / 1048576.0 / (nanos / 1e9) : 0;
+		}
+
+		public double framesPerSecond() {
+			return nanos > 0 ? frames / (nanos / 1e9) : 0;
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	private final String command;
+	private final long   started = System.currentTimeMillis();
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+	private UViewTimings(String command) {
+		this.command = command;
+	}
+
+	/** Starts timing a run of {@code command}. */
+	public static UViewTimings start(String command) {
+		return new UViewTimings(command);
+	}
+
+	/** The phase {@code name}, created on first use (not started). */
+	public Phase phase(String name) {
+		return phases.computeIfAbsent(name, Phase::new);
+	}
+
+	/** Starts the phase {@code name}; use in try-with-resources. */
+	public Phase begin(String name) {
+		return phase(name).start();
+	}
+
+	/**
+	 * Ends the run: stops any running phase, keeps the run as the last one of its
+	 * command and logs the summary if enabled in UView Timings.
+	 */
+	public void finish() {
+		for (Phase p : phases.values()) p.stop();
+		LAST.put(command, this);
+		if (ij.Prefs.get(PREF_LOG, false)) IJ.log(summary());
+	}
+
+	public String command()      { return command; }
+	public long   startedAt()    { return started; }
+	public Collection<Phase> phases() { return Collections.unmodifiableCollection(phases.values()); }
+
+	/** Sum of the phase times; time spent in dialogs is not in any phase. */
+	public double totalMillis() {
+		long total = 0;
+		for (Phase p : phases.values()) total += p.nanos;
+		return total / 1e6;
+	}
+
+	/** One line for the run and one per phase that did something. */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(command).append(": ").append(String.format("%.0f ms", totalMillis()));
+		for (Phase p : phases.values()) {
+			if (p.nanos == 0 && p.bytes == 0 && p.frames == 0) continue;
+			sb.append("\n  ").append(p.name).append(String.format(": %.1f ms", p.millis()));
+			if (p.bytes > 0)
+				sb.append(String.format(", %.1f MB (%.0f MB/s)", p.bytes / 1048576.0, p.megabytesPerSecond()));
+			if (p.frames > 0)
+				sb.append(String.format(", %d frames (%.0f/s)", p.frames, p.framesPerSecond()));
+			if (p.ioNanos + p.decodeNanos + p.headerNanos > 0)
+				sb.append(String.format(", thread time I/O %.0f ms, flip %.0f ms, headers %.0f ms",
+						p.ioMillis(), p.decodeMillis(), p.headerMillis()));
+			if (p.allocated > 0)
+				sb.append(String.format(", allocated %.1f MB", p.allocated / 1048576.0));
+		}
+		return sb.toString();
+	}
+
+	/** Appends a row per phase of this run to {@code rt}. */
+	public void addTo(ResultsTable rt) {
+		for (Phase p : phases.values()) {
+			rt.incrementCounter();
+			rt.addValue("Command",     command);
+			rt.addValue("Phase",       p.name);
+			rt.addValue("Time (ms)",   p.millis());
+			rt.addValue("MB read",     p.bytes / 1048576.0);
+			rt.addValue("MB/s",        p.megabytesPerSecond());
+			rt.addValue("Frames",      p.frames);
+			rt.addValue("Frames/s",    p.framesPerSecond());
+			rt.addValue("I/O (ms)",    p.ioMillis());
+			rt.addValue("Flip (ms)",   p.decodeMillis());
+			rt.addValue("Headers (ms)", p.headerMillis());
+			rt.addValue("Allocated (MB)", p.allocated / 1048576.0);
+		}
+	}
+}
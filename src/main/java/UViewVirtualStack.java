@@ -0,0 +1,192 @@
+/**
+ * UViewVirtualStack — a virtual stack over a series of UView frames.
+ *
+ * Slice labels are known up front (from the .dat headers, read by
+ * UView_Folder_Reader, or from the table of a series file); pixels are decoded
+ * only when a slice is displayed or processed. Decoded slices are kept in a
+ * small LRU cache, and the next few slices in the current scroll direction are
+ * decoded ahead on a background thread, so that scrolling through a long series
+ * does not stall on disk I/O.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.process.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class UViewVirtualStack extends VirtualStack {
+
+	/** Decodes frame {@code index} (0-based, in the original order) of a series. */
+	public interface SliceReader {
+		short[] read(int index) throws IOException;
+	}
+
+	/** Number of slices decoded ahead of the current one. */
+	private static final int READ_AHEAD = 4;
+
+	private final int width, height;
+	private final SliceReader reader;
+	private final List<Integer> frames;    // slice n shows frame frames.get(n-1)
+	private final List<String> names;
+	private final List<String> labels;
+	private final int cacheSlices;
+
+	private final LinkedHashMap<Integer, short[]> cache;
+	private final Map<Integer, Future<short[]>> pending = new HashMap<>();
+	private final ThreadPoolExecutor readAhead;
+
+	private int lastSlice = 0;
+	private int direction = 1;
+
+	/**
+	 * @param reader      decodes the frames, all of size width × height
+	 * @param names       file name of each frame
+	 * @param labels      slice label of each frame
+	 * @param cacheSlices maximum number of decoded slices kept in memory
+	 */
+	public UViewVirtualStack(int width, int height, SliceReader reader,
+	                         List<String> names, List<String> labels, int cacheSlices) {
+		super(width, height, null, null);
+		this.width       = width;
+		this.height      = height;
+		this.reader      = reader;
+		this.names       = new ArrayList<>(names);
+		this.labels      = new ArrayList<>(labels);
+		this.frames      = new ArrayList<>();
+		for (int i = 0; i < names.size(); i++) frames.add(i);
+		this.cacheSlices = Math.max(READ_AHEAD + 2, cacheSlices);
+
+		final int maxCached = this.cacheSlices;
+		cache = new LinkedHashMap<Integer, short[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, short[]> eldest) {
+				return size() > maxCached;
+			}
+		};
+
+		readAhead = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "UView read-ahead");
+					t.setDaemon(true);
+					return t;
+				});
+		readAhead.allowCoreThreadTimeOut(true);
+	}
+
+	/** Number of decoded slices that fit in about an eighth of the heap. */
+	static int defaultCacheSlices(int width, int height) {
+		long sliceBytes = 2L * width * height;
+		return (int) Math.min(1024, Runtime.getRuntime().maxMemory() / 8 / sliceBytes);
+	}
+
+	@Override
+	public int getSize() {
+		return frames.size();
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 16;
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return labels.get(n - 1);
+	}
+
+	@Override
+	public String getFileName(int n) {
+		return names.get(n - 1);
+	}
+
+	@Override
+	public void deleteSlice(int n) {
+		if (n < 1 || n > frames.size()) return;
+		frames.remove(n - 1);
+		names.remove(n - 1);
+		labels.remove(n - 1);
+		// cached slice numbers are no longer valid
+		synchronized (cache) {
+			cache.clear();
+			for (Future<short[]> f : pending.values()) f.cancel(false);
+			pending.clear();
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		short[] pixels;
+		try {
+			pixels = getSlicePixels(n);
+		} catch (IOException e) {
+			IJ.log("UView virtual stack: cannot read " + names.get(n - 1) + " — " + e.getMessage());
+			pixels = new short[width * height];
+		}
+		scheduleReadAhead(n);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	/** Returns the decoded pixels of slice {@code n}, from the cache when possible. */
+	private short[] getSlicePixels(int n) throws IOException {
+		Future<short[]> inFlight;
+		int frame;
+		synchronized (cache) {
+			short[] cached = cache.get(n);
+			if (cached != null) return cached;
+			inFlight = pending.get(n);
+			frame = frames.get(n - 1);
+		}
+		short[] pixels = null;
+		if (inFlight != null) {
+			try {
+				pixels = inFlight.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | CancellationException e) {
+				// fall through and read it here
+			}
+		}
+		if (pixels == null)
+			pixels = reader.read(frame);
+		synchronized (cache) {
+			cache.put(n, pixels);
+		}
+		return pixels;
+	}
+
+	/** Queues decoding of the next slices in the direction the user is moving. */
+	private void scheduleReadAhead(int n) {
+		synchronized (cache) {
+			if (n != lastSlice)
+				direction = n > lastSlice ? 1 : -1;
+			lastSlice = n;
+			for (int k = 1; k <= READ_AHEAD; k++) {
+				final int s = n + k * direction;
+				if (s < 1 || s > frames.size()) break;
+				if (cache.containsKey(s) || pending.containsKey(s)) continue;
+				final int frame = frames.get(s - 1);
+				pending.put(s, readAhead.submit(() -> {
+					try {
+						// skip slices the user has already scrolled away from
+						synchronized (cache) {
+							if (Math.abs(s - lastSlice) > READ_AHEAD) return null;
+						}
+						short[] pixels = reader.read(frame);
+						synchronized (cache) {
+							if (pending.containsKey(s)) cache.put(s, pixels);
+						}
+						return pixels;
+					} finally {
+						synchronized (cache) {
+							pending.remove(s);
+						}
+					}
+				}));
+			}
+		}
+	}
+}
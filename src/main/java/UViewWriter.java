@@ -0,0 +1,311 @@
+/**
+ * UViewWriter — writes UKSOFT2001 (.dat) files in the layout read by UViewLEEMData.
+ *
+ * A file is written in one piece:
+ * <pre>
+ *   file header (104 bytes): "UKSOFT2001", header size, version, bits per pixel,
+ *                            width, height, number of images, attached recipe size
+ *   recipe block (128 bytes), only from version 7 on and if requested
+ *   then for each image:
+ *     image header: size, time (Windows FILETIME) at 8, attached markup size at 22,
+ *                   LEEM data version at 26; for LEEM data versions 1 and 2 the
+ *                   LEEM data follows from byte 28, otherwise the header is 288 bytes
+ *     markup block, rounded up to a multiple of 128 bytes, if any
+ *     LEEM data block of exactly LEEM-data-version bytes, for versions above 2
+ *     pixels, width*height little-endian uint16, bottom row first
+ * </pre>
+ * The LEEM tags are collected in a {@link LeemBlock}, which is a
+ * {@link UViewLEEMData.TagSink}: the tags decoded from one file can be written
+ * unchanged into another.
+ *
+ * Used by the test data generator (UViewDatasetGenerator) and by Export Stack to
+ * UView Files.
+ *
+ * @author Juan de la Figuera
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class UViewWriter {
+
+	private static final int FILE_HEADER_SIZE     = 104;
+	private static final int RECIPE_BLOCK_SIZE    = 128;
+	private static final int IMAGE_HEADER_SIZE    = 288;
+	private static final int IMAGE_HEADER_FIXED   = 28;
+
+	/** The header variants of the files written; the defaults are those of current U-view versions. */
+	public static final class Layout {
+		/** UKFH_version; a recipe block can only be attached from version 7 on. */
+		public int     version = 8;
+		public boolean recipe;
+		/**
+		 * 1 or 2: the LEEM data is stored inside the image header (2 adds the two
+		 * averaging bytes after the camera exposure); above 2: the size of the
+		 * separate LEEM data block; 0: no LEEM data.
+		 */
+		public int     leemDataVersion = 256;
+		/** UKIH_attachedMarkupSize; 0 for no markup block. */
+		public int     markupSize;
+		/** Number of images in each file. */
+		public int     images = 1;
+
+		public Layout() {
+		}
+
+		public Layout(int version, boolean recipe, int leemDataVersion, int markupSize, int images) {
+			this.version         = version;
+			this.recipe          = recipe;
+			this.leemDataVersion = leemDataVersion;
+			this.markupSize      = markupSize;
+			this.images          = images;
+		}
+
+		boolean hasRecipe() {
+			return recipe && version >= 7;
+		}
+
+		int markupBlockSize() {
+			return markupSize > 0 ? 128 * ((markupSize / 128) + 1) : 0;
+		}
+	}
+
+	/**
+	 * The LEEM tags of a file, in the order in which they are added. Numeric tags
+	 * take the tag code, name and unit as {@link UViewLEEMData#decode} reports them;
+	 * the pairs MicrometerX/Y (100) and Phi/Theta (111) are written together
+	 * once both values are known.
+	 */
+	public static final class LeemBlock implements UViewLEEMData.TagSink {
+
+		private final ByteArrayOutputStream tags = new ByteArrayOutputStream(256);
+		private final List<Integer> exposures = new ArrayList<>();   // offsets of tag 104
+		private float pendingX = Float.NaN, pendingPhi = Float.NaN;
+
+		@Override
+		public void number(int tag, String key, float value, String unit) {
+			switch (tag) {
+			case 100:
+				if (key.equals("MicrometerX")) {
+					pendingX = value;
+				} else {
+					tag(100);
+					putFloat(Float.isNaN(pendingX) ? 0 : pendingX);
+					putFloat(value);
+					pendingX = Float.NaN;
+				}
+				break;
+			case 111:
+				if (key.equals("Phi")) {
+					pendingPhi = value;
+				} else {
+					tag(111);
+					putFloat(Float.isNaN(pendingPhi) ? 0 : pendingPhi);
+					putFloat(value);
+					pendingPhi = Float.NaN;
+				}
+				break;
+			case 102: case 103: case 115: case 116:
+				tag(tag);
+				putFloat(value);
+				break;
+			case 104:
+				tag(104);
+				putFloat(value);
+				exposures.add(tags.size());
+				break;
+			case 106: case 107: case 108: case 109:
+				tag(tag);
+				putString(key);
+				putString(unit);
+				putFloat(value);
+				break;
+			case 110:
+				tag(110);
+				putString(unit);
+				putFloat(value);
+				break;
+			default:
+				if (tag >= 100)
+					throw new IllegalArgumentException("Unknown LEEM tag " + tag);
+				// name + unit digit, e.g. "Start Voltage1" for volts
+				int code = Arrays.asList(UViewLEEMData.UNIT_NAMES).indexOf(unit);
+				tag(tag);
+				putString(code >= 0 ? key + code : key + " (" + unit + ")0");
+				putFloat(value);
+			}
+		}
+
+		@Override
+		public void text(int tag, String key, String value) {
+			if (tag != 101 && tag != 105)
+				throw new IllegalArgumentException("Unknown LEEM text tag " + tag);
+			tag(tag);
+			putString(value);
+		}
+
+		/**
+		 * The encoded block, ending with 0xFF. For LEEM data version 2 and later the
+		 * camera exposure is followed by two averaging bytes (here zero).
+		 */
+		byte[] encode(boolean averagingBytes) {
+			byte[] body = tags.toByteArray();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 8);
+			int from = 0;
+			if (averagingBytes) {
+				for (int at : exposures) {
+					out.write(body, from, at - from);
+					out.write(0);
+					out.write(0);
+					from = at;
+				}
+			}
+			out.write(body, from, body.length - from);
+			out.write(0xFF);
+			return out.toByteArray();
+		}
+
+		private void tag(int tag) {
+			tags.write(tag);
+		}
+
+		private void putString(String s) {
+			byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+			tags.write(b, 0, b.length);
+			tags.write(0);
+		}
+
+		private void putFloat(float v) {
+			int bits = Float.floatToRawIntBits(v);
+			tags.write(bits);
+			tags.write(bits >>> 8);
+			tags.write(bits >>> 16);
+			tags.write(bits >>> 24);
+		}
+	}
+
+	private final int    width, height;
+	private final Layout layout;
+
+	public UViewWriter(int width, int height, Layout layout) {
+		if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF)
+			throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+		if (layout.images < 1 || layout.images > 0xFFFF)
+			throw new IllegalArgumentException("Invalid number of images " + layout.images);
+		this.width  = width;
+		this.height = height;
+		this.layout = layout;
+	}
+
+	/** Size in bytes of a file with the LEEM tags of {@code leem}. */
+	public long fileSize(LeemBlock leem) {
+		return FILE_HEADER_SIZE + (layout.hasRecipe() ? RECIPE_BLOCK_SIZE : 0)
+				+ (long) layout.images * (imageHeaderSize(leemBytes(leem)) + layout.markupBlockSize()
+				+ externalLeemSize() + 2L * width * height);
+	}
+
+	/** Converts milliseconds since 1970 to a Windows FILETIME, as stored in the image header. */
+	public static long fileTime(long epochMillis) {
+		return epochMillis * 10000L + 116444736000000000L;
+	}
+
+	/**
+	 * Writes a file of {@link Layout#images} images.
+	 *
+	 * @param time   acquisition time as a Windows FILETIME (see {@link #fileTime})
+	 * @param images the pixels of each image, width*height values, top row first
+	 */
+	public void write(File file, long time, LeemBlock leem, short[]... images) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) fileSize(leem));
+		encode(buf, time, leem, images);
+		buf.flip();
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) ch.write(buf);
+		}
+	}
+
+	/**
+	 * Encodes a file into {@code out} from its position on, which must have
+	 * {@link #fileSize} bytes left. For writing many files with one reused buffer.
+	 */
+	public void encode(ByteBuffer out, long time, LeemBlock leem, short[]... images) {
+		if (images.length != layout.images)
+			throw new IllegalArgumentException(images.length + " images for a layout of " + layout.images);
+		byte[] leemData = leemBytes(leem);
+		if (layout.leemDataVersion > 2 && leemData.length > layout.leemDataVersion)
+			throw new IllegalArgumentException("LEEM data needs " + leemData.length
+					+ " bytes, more than the block size " + layout.leemDataVersion);
+		out.order(ByteOrder.LITTLE_ENDIAN);
+
+		int start = out.position();
+		zero(out, start, start + FILE_HEADER_SIZE);
+		out.put(UViewLEEMData.MAGIC.getBytes(StandardCharsets.US_ASCII));
+		out.putShort(start + 20, (short) FILE_HEADER_SIZE);
+		out.putShort(start + 22, (short) layout.version);
+		out.putShort(start + 24, (short) 16);
+		out.putShort(start + 40, (short) width);
+		out.putShort(start + 42, (short) height);
+		out.putShort(start + 44, (short) layout.images);
+		if (layout.version >= 7)
+			out.putShort(start + 46, (short) (layout.hasRecipe() ? 100 : 0));
+		out.position(start + FILE_HEADER_SIZE);
+		if (layout.hasRecipe()) zero(out, out.position(), out.position() + RECIPE_BLOCK_SIZE);
+		out.position(out.position() + (layout.hasRecipe() ? RECIPE_BLOCK_SIZE : 0));
+
+		int headerSize = imageHeaderSize(leemData);
+		for (short[] pixels : images) {
+			int ih = out.position();
+			int end = ih + headerSize + layout.markupBlockSize() + externalLeemSize();
+			zero(out, ih, end);
+			out.putShort(ih,      (short) headerSize);
+			out.putShort(ih + 2,  (short) 1);
+			out.putLong (ih + 8,  time);
+			out.putShort(ih + 22, (short) layout.markupSize);
+			out.putShort(ih + 26, (short) layout.leemDataVersion);
+			if (layout.leemDataVersion >= 1 && layout.leemDataVersion <= 2) {
+				out.position(ih + IMAGE_HEADER_FIXED);
+				out.put(leemData);
+			} else if (layout.leemDataVersion > 2) {
+				out.position(ih + headerSize + layout.markupBlockSize());
+				out.put(leemData);
+			}
+			out.position(end);
+			putPixels(out, pixels);
+		}
+	}
+
+	/** Stores the rows bottom-up, as U-view does. */
+	private void putPixels(ByteBuffer out, short[] pixels) {
+		if (pixels.length != width * height)
+			throw new IllegalArgumentException("Image has " + pixels.length + " pixels, expected "
+					+ width + "x" + height);
+		ShortBuffer sb = out.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		for (int row = height - 1; row >= 0; row--)
+			sb.put(pixels, row * width, width);
+		out.position(out.position() + 2 * width * height);
+	}
+
+	private byte[] leemBytes(LeemBlock leem) {
+		if (layout.leemDataVersion == 0 || leem == null) return new byte[0];
+		return leem.encode(layout.leemDataVersion >= 2);
+	}
+
+	private int imageHeaderSize(byte[] leemData) {
+		if (layout.leemDataVersion >= 1 && layout.leemDataVersion <= 2)
+			return IMAGE_HEADER_FIXED + leemData.length;
+		return IMAGE_HEADER_SIZE;
+	}
+
+	private int externalLeemSize() {
+		return layout.leemDataVersion > 2 ? layout.leemDataVersion : 0;
+	}
+
+	private static void zero(ByteBuffer out, int from, int to) {
+		for (int i = from; i < to; i++) out.put(i, (byte) 0);
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * UView_Export — writes the slices of a stack as UView .dat files, one file per
+ * slice, so that processed stacks (aligned, averaged, normalised) can be opened
+ * again in U-view or with the LEEMandPEEM readers.
+ *
+ * The numeric tags of each slice, from the tag table of the stack (see
+ * UViewTagTable), are written back as LEEM tags: the tags the UView readers know
+ * by name (MicrometerX/Y, CameraExposure, FOVCalibration, MCP voltages, ...) with
+ * their own tag code, readings with a U-view unit such as "Start Voltage (V)" as
+ * module readings, other tags with a unit as gauges (at most four) and the rest,
+ * e.g. the companion-CSV "Energy (eV)", as module readings under their full name.
+ * Reading an exported file back therefore gives the same tag names. The
+ * acquisition time and FOV text are taken from the Date and FOV lines of the slice
+ * label when present.
+ *
+ * 16-bit stacks are written unchanged; 8-bit and 32-bit stacks are converted to
+ * 16 bits, either scaled to the full range or with the values clipped.
+ *
+ * Appears in Fiji as Plugins > LEEMandPEEM > Export Stack to UView Files.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+
+import java.io.*;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+public class UView_Export implements PlugIn {
+
+	private static final DateTimeFormatter LABEL_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private static final String PREF_PREFIX = "LEEMandPEEM.export.prefix";
+	private static final String PREF_SCALE  = "LEEMandPEEM.export.scale";
+
+	/** Tags the readers decode by name, with their tag code and the unit they are stored with. */
+	private static final Map<String, Object[]> NAMED = new HashMap<>();
+	static {
+		NAMED.put("MicrometerX",      new Object[] {100, ""});
+		NAMED.put("MicrometerY",      new Object[] {100, ""});
+		NAMED.put("Varian1",          new Object[] {102, ""});
+		NAMED.put("Varian2",          new Object[] {103, ""});
+		NAMED.put("CameraExposure",   new Object[] {104, "s"});
+		NAMED.put("FOVCalibration",   new Object[] {110, "µm"});
+		NAMED.put("Phi",              new Object[] {111, ""});
+		NAMED.put("Theta",            new Object[] {111, ""});
+		NAMED.put("MCPScreenVoltage", new Object[] {115, "kV"});
+		NAMED.put("MCPChannelPlate",  new Object[] {116, "kV"});
+	}
+
+	@Override
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		if (imp == null) return;
+		int bitDepth = imp.getBitDepth();
+		if (bitDepth == 24) {
+			IJ.error("Export Stack to UView Files", "RGB images cannot be exported.");
+			return;
+		}
+
+		GenericDialog gd = new GenericDialog("Export Stack to UView Files");
+		gd.addStringField("File name prefix:", ij.Prefs.get(PREF_PREFIX, "img"), 20);
+		if (bitDepth != 16)
+			gd.addCheckbox("Scale to 16-bit range", ij.Prefs.get(PREF_SCALE, true));
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		String prefix = gd.getNextString().trim().replaceAll("[\\\\/:*?\"<>|]", "_");
+		boolean scale = bitDepth != 16 && gd.getNextBoolean();
+		ij.Prefs.set(PREF_PREFIX, prefix);
+		if (bitDepth != 16) ij.Prefs.set(PREF_SCALE, scale);
+
+		DirectoryChooser dc = new DirectoryChooser("Folder for the .dat files");
+		String dir = dc.getDirectory();
+		if (dir == null) return;
+		File folder = new File(dir);
+
+		ImageStack stack = imp.getStack();
+		int n = stack.getSize();
+		String pattern = prefix + "%0" + Math.max(4, Integer.toString(n).length()) + "d.dat";
+		int existing = 0;
+		for (int i = 1; i <= n; i++)
+			if (new File(folder, String.format(pattern, i)).exists()) existing++;
+		if (existing > 0 && !IJ.showMessageWithCancel("Export Stack to UView Files",
+				existing + " file(s) named " + String.format(pattern, 1) + " ... already exist in\n"
+				+ dir + "\nOverwrite them?"))
+			return;
+
+		UViewTagTable table = UViewTagTable.forImage(imp);
+		List<String> tags = table.tags();
+		long now = System.currentTimeMillis();
+		Set<String> dropped = new LinkedHashSet<>();
+		try {
+			for (int i = 1; i <= n; i++) {
+				IJ.showProgress(i, n);
+				Map<String, Double> values = new LinkedHashMap<>();
+				for (String tag : tags) {
+					double v = table.get(tag, i);
+					if (!Double.isNaN(v)) values.put(tag, v);
+				}
+				Map<String, String> label = labelLines(stack.getSliceLabel(i));
+				UViewWriter.LeemBlock leem = leemOf(values, label, imp.getTitle(), dropped);
+
+				UViewWriter.Layout layout = new UViewWriter.Layout();
+				int size = leem.encode(true).length;
+				layout.leemDataVersion = Math.max(256, (size + 63) / 64 * 64);
+
+				ImageProcessor ip = stack.getProcessor(i);
+				short[] pixels = bitDepth == 16 ? (short[]) ip.getPixels()
+						: (short[]) ip.convertToShortProcessor(scale).getPixels();
+				long time = timeOf(label.get("Date"), now);
+				new UViewWriter(stack.getWidth(), stack.getHeight(), layout)
+						.write(new File(folder, String.format(pattern, i)), UViewWriter.fileTime(time),
+								leem, pixels);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			IJ.error("Export Stack to UView Files", "Could not write the files:\n" + e.getMessage());
+			return;
+		} finally {
+			IJ.showProgress(1.0);
+		}
+		IJ.log("Export Stack to UView Files: wrote " + n + " files " + String.format(pattern, 1)
+				+ " ... to " + dir);
+		if (!dropped.isEmpty())
+			IJ.log("Export Stack to UView Files: no tag codes left for " + dropped.size()
+					+ " tag(s), not written: " + String.join(", ", dropped));
+	}
+
+	/**
+	 * The LEEM tags of one slice, from its numeric tags and its label lines, so that
+	 * the UView readers decode them under the same names. Other tags get the module
+	 * codes 0 to 99, except 16, which the readers take as a one-byte record; the
+	 * names of the tags left over when they run out are added to {@code dropped}.
+	 */
+	static UViewWriter.LeemBlock leemOf(Map<String, Double> values, Map<String, String> label,
+	                                    String title, Set<String> dropped) {
+		UViewWriter.LeemBlock leem = new UViewWriter.LeemBlock();
+		int module = 0, gauge = 106;
+		for (Map.Entry<String, Double> e : values.entrySet()) {
+			String key = e.getKey();
+			float  v   = e.getValue().floatValue();
+			Object[] named = NAMED.get(key);
+			if (named != null) {
+				String unit = (String) named[1];
+				String text = label.get(key);   // e.g. "0.02440 um": keep the unit read from the file
+				int sp = text == null ? -1 : text.indexOf(' ');
+				if (sp >= 0 && !unit.isEmpty()) unit = text.substring(sp + 1);
+				leem.number((Integer) named[0], key, v, unit);
+				continue;
+			}
+			String name = key, unit = "";
+			if (key.endsWith(")") && key.lastIndexOf(" (") > 0) {
+				name = key.substring(0, key.lastIndexOf(" ("));
+				unit = key.substring(key.lastIndexOf(" (") + 2, key.length() - 1);
+			}
+			if (!unit.isEmpty() && !Arrays.asList(UViewLEEMData.UNIT_NAMES).contains(unit) && gauge <= 109) {
+				leem.number(gauge++, name, v, unit);
+			} else {
+				if (module == 16) module++;
+				if (module < 100) leem.number(module++, name, v, unit);
+				else dropped.add(key);
+			}
+		}
+		if (label.containsKey("FOV")) leem.text(101, "FOV", label.get("FOV"));
+		leem.text(105, "Title", title);
+		return leem;
+	}
+
+	/** The key=value lines of a slice label. */
+	private static Map<String, String> labelLines(String label) {
+		Map<String, String> lines = new HashMap<>();
+		if (label == null) return lines;
+		for (String line : label.split("\n")) {
+			int eq = line.indexOf('=');
+			if (eq > 0) lines.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+		}
+		return lines;
+	}
+
+	/** The Date of a slice label (as written by the UView Folder Reader), or {@code fallback}. */
+	private static long timeOf(String date, long fallback) {
+		if (date == null) return fallback;
+		try {
+			return LocalDateTime.parse(date, LABEL_DATE).atZone(ZoneId.systemDefault())
+					.toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			return fallback;
+		}
+	}
+}
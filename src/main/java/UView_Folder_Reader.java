@@ -1,9 +1,9 @@
 /**
  * UView_Folder_Reader — opens a folder of UKSOFT2000/UView .dat files as an ImageJ stack.
  *
- * Bypasses SCIFIO entirely for maximum speed. Each file is read with a single I/O call;
- * the vertical flip is done in memory with System.arraycopy. LEEM metadata from each
- * file is stored as the slice label.
+ * Bypasses SCIFIO entirely for maximum speed. The pixels of each file are read with a
+ * single I/O call into a reused buffer, and the vertical flip is done while copying them
+ * into the slice array. LEEM metadata from each file is stored as the slice label.
  *
  * Appears in Fiji as Plugins > UView Folder Reader.
  *
@@ -19,19 +19,37 @@ import ij.io.*;
 import java.io.*;
 import java.nio.*;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
-import java.text.*;
+import java.nio.channels.FileChannel;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UView_Folder_Reader implements PlugIn {
 
-	private static final String MAGIC        = "UKSOFT2001";
-	private static final String[] UNIT_NAMES = {"", "V", "mA", "A", "\u00b0C", "K", "mV", "pA", "nA", "\u00b5A"};
+	private static final DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
 	private static final String PREF_FILTER    = "LEEMandPEEM.folderReader.filter";
 	private static final String PREF_START     = "LEEMandPEEM.folderReader.startImg";
 	private static final String PREF_NUM       = "LEEMandPEEM.folderReader.numImages";
 	private static final String PREF_INCREMENT = "LEEMandPEEM.folderReader.increment";
+	private static final String PREF_PARALLEL  = "LEEMandPEEM.folderReader.parallel";
+	private static final String PREF_VIRTUAL   = "LEEMandPEEM.folderReader.virtual";
+	private static final String PREF_FOLLOW    = "LEEMandPEEM.folderReader.follow";
+	private static final String PREF_QUERY     = "LEEMandPEEM.folderReader.tagQuery";
+	private static final String PREF_BINNING   = "LEEMandPEEM.folderReader.binning";
+	private static final String PREF_CROP      = "LEEMandPEEM.folderReader.crop";
+	private static final String PREF_ACCUM     = "LEEMandPEEM.folderReader.accumulate";
+	private static final String PREF_GROUP_N   = "LEEMandPEEM.folderReader.groupCount";
+	private static final String PREF_GROUP_TAG = "LEEMandPEEM.folderReader.groupTag";
+	private static final String PREF_COMBINE   = "LEEMandPEEM.folderReader.combine";
+	private static final String PREF_CSV_COLS  = UViewCsvTags.PREF_COLUMNS;
+
+	private static final String[] BINNINGS   = {"1x1", "2x2", "4x4"};
+	private static final String[] ACCUMULATE = {"None", "Fixed count", "Same tag value"};
+	private static final String[] COMBINE    = {"Average", "Sum"};
 
 	@Override
 	public void run(String arg) {
@@ -39,6 +57,8 @@ public class UView_Folder_Reader implements PlugIn {
 		String dir = dc.getDirectory();
 		if (dir == null) return;
 
+		UViewTimings timings = UViewTimings.start("UView Folder Reader");
+		UViewTimings.Phase scan = timings.begin("scan");
 		File folder = new File(dir);
 		File[] allFiles = folder.listFiles((d, name) -> name.toLowerCase().endsWith(".dat"));
 		if (allFiles == null || allFiles.length == 0) {
@@ -46,33 +66,106 @@ public class UView_Folder_Reader implements PlugIn {
 			return;
 		}
 		Arrays.sort(allFiles);
-
-		// --- load CSV tags (Energy, M4b) if a matching CSV exists ---
-		Map<String, Map<String, String>> csvTags = loadCsvTags(folder, allFiles);
+		scan.stop();
 
 		// --- options dialog (restore last-used values) ---
 		String prevFilter    = ij.Prefs.get   (PREF_FILTER,    "");
+		String prevQuery     = ij.Prefs.get   (PREF_QUERY,     "");
 		int    prevStart     = (int) ij.Prefs.get(PREF_START,     1);
 		int    prevNum       = (int) ij.Prefs.get(PREF_NUM,       allFiles.length);
 		int    prevIncrement = (int) ij.Prefs.get(PREF_INCREMENT, 1);
+		boolean prevParallel = ij.Prefs.get(PREF_PARALLEL, true);
+		boolean prevVirtual  = ij.Prefs.get(PREF_VIRTUAL,  false);
+		boolean prevFollow   = ij.Prefs.get(PREF_FOLLOW,   false);
+		String prevBinning   = ij.Prefs.get   (PREF_BINNING,   BINNINGS[0]);
+		String prevCrop      = ij.Prefs.get   (PREF_CROP,      "");
+		String prevAccum     = ij.Prefs.get   (PREF_ACCUM,     ACCUMULATE[0]);
+		int    prevGroupN    = (int) ij.Prefs.get(PREF_GROUP_N,   2);
+		String prevGroupTag  = ij.Prefs.get   (PREF_GROUP_TAG, "Energy (eV)");
+		String prevCombine   = ij.Prefs.get   (PREF_COMBINE,   COMBINE[0]);
+		String prevCsvCols   = ij.Prefs.get   (PREF_CSV_COLS,  "");
 
 		GenericDialog gd = new GenericDialog("UView Folder Reader");
 		gd.addStringField("File name contains:",  prevFilter,    20);
+		gd.addStringField("Tag condition:",       prevQuery,     20);
 		gd.addNumericField("Starting image:",       prevStart,     0);
 		gd.addNumericField("Number of images:",     prevNum,       0);
 		gd.addNumericField("Increment:",            prevIncrement, 0);
+		gd.addChoice("Binning:",                    BINNINGS, prevBinning);
+		gd.addStringField("Crop x,y,w,h (empty = full frame):", prevCrop, 20);
+		gd.addChoice("Accumulate:",                 ACCUMULATE, prevAccum);
+		gd.addNumericField("Frames per group:",     prevGroupN,    0);
+		gd.addStringField("Group tag:",             prevGroupTag,  20);
+		gd.addChoice("Combine:",                    COMBINE, prevCombine);
+		gd.addStringField("CSV columns (empty = all):", prevCsvCols, 20);
+		gd.addCheckbox("Parallel loading",          prevParallel);
+		gd.addCheckbox("Virtual stack (read frames on demand)", prevVirtual);
+		gd.addCheckbox("Follow folder (append new files as they are written)", prevFollow);
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
 
 		String filter    =        gd.getNextString().trim();
+		String queryText =        gd.getNextString().trim();
 		int    startImg  = Math.max(1, (int) gd.getNextNumber());
 		int    numImages = Math.max(1, (int) gd.getNextNumber());
 		int    increment = Math.max(1, (int) gd.getNextNumber());
+		String binning   =        gd.getNextChoice();
+		String cropText  =        gd.getNextString().trim();
+		String accum     =        gd.getNextChoice();
+		int    groupN    = Math.max(1, (int) gd.getNextNumber());
+		String groupTag  =        gd.getNextString().trim();
+		String combine   =        gd.getNextChoice();
+		String csvCols   =        gd.getNextString().trim();
+		boolean parallel =        gd.getNextBoolean();
+		boolean virtual  =        gd.getNextBoolean();
+		boolean follow   =        gd.getNextBoolean();
+
+		UViewTagQuery query;
+		try {
+			query = UViewTagQuery.parse(queryText);
+		} catch (IllegalArgumentException e) {
+			IJ.error("UView Folder Reader", "Invalid tag condition:\n" + e.getMessage());
+			return;
+		}
+		int[] crop = null;
+		if (!cropText.isEmpty()) {
+			String[] parts = cropText.split("[,\\s]+");
+			try {
+				if (parts.length != 4) throw new NumberFormatException();
+				crop = new int[4];
+				for (int k = 0; k < 4; k++) crop[k] = Integer.parseInt(parts[k]);
+			} catch (NumberFormatException e) {
+				IJ.error("UView Folder Reader", "Crop must be four integers: x, y, width, height.");
+				return;
+			}
+		}
+		int bin = Integer.parseInt(binning.substring(0, 1));
+
+		Grouping grouping = null;
+		if (accum.equals(ACCUMULATE[1]))
+			grouping = new Grouping(groupN, null, combine.equals(COMBINE[1]));
+		else if (accum.equals(ACCUMULATE[2]))
+			grouping = new Grouping(0, groupTag, combine.equals(COMBINE[1]));
+		if (grouping != null && virtual) {
+			IJ.error("UView Folder Reader", "Accumulation cannot be combined with a virtual stack.");
+			return;
+		}
 
 		ij.Prefs.set(PREF_FILTER,    filter);
+		ij.Prefs.set(PREF_QUERY,     queryText);
 		ij.Prefs.set(PREF_START,     startImg);
 		ij.Prefs.set(PREF_NUM,       numImages);
 		ij.Prefs.set(PREF_INCREMENT, increment);
+		ij.Prefs.set(PREF_BINNING,   binning);
+		ij.Prefs.set(PREF_CROP,      cropText);
+		ij.Prefs.set(PREF_ACCUM,     accum);
+		ij.Prefs.set(PREF_GROUP_N,   groupN);
+		ij.Prefs.set(PREF_GROUP_TAG, groupTag);
+		ij.Prefs.set(PREF_COMBINE,   combine);
+		ij.Prefs.set(PREF_CSV_COLS,  csvCols);
+		ij.Prefs.set(PREF_PARALLEL,  parallel);
+		ij.Prefs.set(PREF_VIRTUAL,   virtual);
+		ij.Prefs.set(PREF_FOLLOW,    follow);
 
 		// apply filename filter
 		List<File> filtered = new ArrayList<>();
@@ -85,6 +178,24 @@ public class UView_Folder_Reader implements PlugIn {
 			return;
 		}
 
+		// companion CSV tags, matched to the files by name, timestamp or position
+		UViewTimings.Phase csv = timings.begin("index and CSV");
+		UViewIndex index = UViewIndex.load(folder);
+		UViewCsvTags csvTags = UViewCsvTags.load(folder, allFiles, index);
+		csv.stop();
+
+		// apply tag condition on the headers alone, before any pixels are read;
+		// the range below then counts matching files only
+		UViewTimings.Phase headers = timings.begin("headers");
+		if (!query.isEmpty()) {
+			filtered = selectByTags(filtered, query, index, csvTags);
+			index.save();
+			if (filtered.isEmpty()) {
+				IJ.error("UView Folder Reader", "No files match the tag condition \"" + queryText + "\".");
+				return;
+			}
+		}
+
 		// apply range: starting image (1-based), count, increment
 		int from = startImg - 1;                          // 0-based
 		int to   = Math.min(from + numImages * increment, filtered.size());
@@ -97,42 +208,71 @@ public class UView_Folder_Reader implements PlugIn {
 			return;
 		}
 
-		// --- read selected files ---
-		ImageStack stack = null;
-		int width = 0, height = 0;
-		int skipped = 0;
-
-		IJ.showStatus("Reading " + selected.size() + " UView files...");
-
-		for (int n = 0; n < selected.size(); n++) {
-			IJ.showProgress(n, selected.size());
-			File f = selected.get(n);
+		// --- size of the loaded slices: crop and binning, resolved on the first frame ---
+		Region region = null;
+		FrameHeader first = null;
+		File firstFile = null;
+		for (File f : selected) {
 			try {
-				FrameData frame = readDat(f);
-				if (stack == null) {
-					width  = frame.width;
-					height = frame.height;
-					stack  = new ImageStack(width, height);
-				} else if (frame.width != width || frame.height != height) {
-					IJ.log("Skipped (different size): " + f.getName());
-					skipped++;
-					continue;
-				}
-				// append CSV tags (Energy, M4b) to slice label if available
-				Map<String, String> extra = csvTags.get(f.getName());
-				if (extra != null && !extra.isEmpty()) {
-					StringBuilder sb = new StringBuilder(frame.label);
-					for (Map.Entry<String, String> e : extra.entrySet())
-						sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
-					frame.label = sb.toString();
-				}
-				ShortProcessor sp = new ShortProcessor(width, height, frame.pixels, null);
-				stack.addSlice(f.getName() + "\n" + frame.label, sp);
+				first = index.header(f);
+				firstFile = f;
+				region = Region.of(first.width, first.height, crop, bin);
+				break;
+			} catch (IllegalArgumentException e) {
+				IJ.error("UView Folder Reader", e.getMessage());
+				return;
 			} catch (Exception e) {
-				IJ.log("Skipped (read error): " + f.getName() + " — " + e.getMessage());
-				skipped++;
+				// unreadable; it is reported by the loader below
+			}
+		}
+		if (region == null) {
+			IJ.error("UView Folder Reader", "No valid .dat files could be read.");
+			return;
+		}
+		if (grouping != null && grouping.tag != null) {
+			Map<String, String> tags = new LinkedHashMap<>(first.meta);
+			Map<String, String> extra = csvTags.tags(firstFile.getName());
+			if (extra != null) tags.putAll(extra);
+			if (!tags.containsKey(grouping.tag)) {
+				IJ.error("UView Folder Reader", "The frames have no tag \"" + grouping.tag
+						+ "\" to group by.\nAvailable tags:\n" + String.join(", ", tags.keySet()));
+				return;
 			}
 		}
+		headers.stop();
+
+		// --- check the stack fits in memory before any pixels are read ---
+		UViewLoadPlanner.Plan plan = UViewLoadPlanner.plan(region, crop, selected.size(),
+				grouping, parallel, virtual);
+		if (plan == null) return;
+		region  = plan.region;
+		virtual = plan.virtual;
+
+		// --- read selected files ---
+		IJ.showStatus("Reading " + selected.size() + " UView files...");
+		UViewTimings.Phase read = timings.begin(virtual ? "headers (virtual)" : "read");
+
+		ImageStack stack;
+		UViewTagTable table;
+		int skipped;
+		if (virtual) {
+			VirtualResult vr = readVirtual(selected, index, region, csvTags);
+			stack   = vr.stack;
+			table   = vr.table;
+			skipped = vr.skipped;
+		} else {
+			StackAssembler asm = new StackAssembler(region, grouping, csvTags);
+			if (parallel && selected.size() > 1)
+				readParallel(selected, index, region, asm);
+			else
+				readSequential(selected, index, region, asm);
+			asm.finish();
+			stack   = asm.stack;
+			table   = asm.table;
+			skipped = asm.skipped;
+		}
+		index.save();
+		read.stop();
 
 		IJ.showProgress(1.0);
 		IJ.showStatus("");
@@ -142,297 +282,634 @@ public class UView_Folder_Reader implements PlugIn {
 			return;
 		}
 
+		UViewTimings.Phase show = timings.begin("show");
 		ImagePlus imp = new ImagePlus(folder.getName(), stack);
+		imp.setProperty(UViewTagTable.PROPERTY, table);
 		imp.show();
+		show.stop();
+		timings.finish();
 
 		if (skipped > 0)
 			IJ.log("UView Folder Reader: skipped " + skipped + " file(s).");
+
+		if (follow) {
+			if (virtual || grouping != null) {
+				IJ.log("UView Folder Reader: follow folder needs a non-virtual stack"
+						+ " without accumulation; not following.");
+			} else {
+				List<String> known = new ArrayList<>();
+				for (File f : allFiles) known.add(f.getName());
+				new UViewFolderFollower(imp, folder, filter, index, region, known).start();
+			}
+		}
 	}
 
 	// -------------------------------------------------------------------------
 
 	/**
-	 * Looks for a CSV file in {@code folder} whose name does not contain "meta".
-	 * Parses its "Energy" and "M4b" columns and returns a map from each .dat
-	 * filename (by sorted position) to a map of tag key → value.
+	 * Keeps the files whose header tags (and CSV tags) satisfy {@code query}.
+	 * Only headers are read, so this costs a few hundred bytes per file, or
+	 * nothing for files already in the index. Unreadable files are logged and
+	 * dropped.
 	 */
-	private static Map<String, Map<String, String>> loadCsvTags(File folder, File[] sortedFiles) {
-		File[] csvFiles = folder.listFiles((d, name) -> {
-			String lower = name.toLowerCase();
-			return lower.endsWith(".csv") && !lower.contains("meta");
-		});
-		if (csvFiles == null || csvFiles.length == 0) {
-			IJ.log("UView Folder Reader: no CSV file found in " + folder.getAbsolutePath());
-			return Collections.emptyMap();
-		}
-
-		Arrays.sort(csvFiles);
-		File csvFile = csvFiles[0];
-		IJ.log("UView Folder Reader: found CSV " + csvFile.getAbsolutePath());
-
-		Map<String, Map<String, String>> result = new LinkedHashMap<>();
-		try (BufferedReader br = new BufferedReader(
-				new InputStreamReader(new FileInputStream(csvFile), StandardCharsets.UTF_8))) {
-			String header = br.readLine();
-			if (header == null) {
-				IJ.log("UView Folder Reader: CSV is empty.");
-				return result;
+	private static List<File> selectByTags(List<File> files, UViewTagQuery query, UViewIndex index,
+	                                       UViewCsvTags csvTags) {
+		IJ.showStatus("Scanning " + files.size() + " headers...");
+		List<File> matching = new ArrayList<>();
+		for (int n = 0; n < files.size(); n++) {
+			IJ.showProgress(n, files.size());
+			File f = files.get(n);
+			FrameHeader h;
+			try {
+				h = index.header(f);
+			} catch (Exception e) {
+				IJ.log("Skipped (read error): " + f.getName() + " — " + e.getMessage());
+				continue;
 			}
-			// strip UTF-8 BOM if present (Excel on Windows adds this)
-			if (header.startsWith("\uFEFF")) {
-				IJ.log("UView Folder Reader: stripped UTF-8 BOM from CSV header.");
-				header = header.substring(1);
+			Map<String, String> extra = csvTags.tags(f.getName());
+			if (query.matches(key -> {
+					String v = h.meta.get(key);
+					return (v == null && extra != null) ? extra.get(key) : v;
+				}))
+				matching.add(f);
+		}
+		IJ.showProgress(1.0);
+		IJ.log("UView Folder Reader: " + matching.size() + " of " + files.size()
+				+ " files match the tag condition.");
+		return matching;
+	}
+
+	/** Receives decoded frames, in list order. */
+	interface FrameSink {
+		void add(File f, FrameData frame);
+		void fail(File f, Throwable e);
+	}
+
+	/** Reads the files one after the other on the calling thread. */
+	static void readSequential(List<File> files, UViewIndex index, Region region,
+	                           FrameSink sink) {
+		for (int n = 0; n < files.size(); n++) {
+			IJ.showProgress(n, files.size());
+			File f = files.get(n);
+			FrameData frame;
+			try {
+				frame = readDat(f, index, region);
+			} catch (Exception e) {
+				sink.fail(f, e);
+				continue;
 			}
-			IJ.log("UView Folder Reader: CSV header = [" + header + "]");
-
-			String delim = header.contains(";") ? ";" : ",";
-			IJ.log("UView Folder Reader: delimiter = [" + delim + "]");
-			String[] cols = header.split(delim);
-			int energyIdx = -1, m4bIdx = -1;
-			for (int i = 0; i < cols.length; i++) {
-				String col = cols[i].trim();
-				IJ.log("  col[" + i + "] = [" + col + "] (len=" + col.length() + ")");
-				if (col.equalsIgnoreCase("Energy")) energyIdx = i;
-				else if (col.equalsIgnoreCase("M4b"))  m4bIdx  = i;
+			sink.add(f, frame);
+		}
+	}
+
+	/**
+	 * Decodes the files on a pool with one worker per core. Frames are handed to
+	 * the sink strictly in list order, so slice order, size-mismatch and
+	 * read-error handling are the same as in {@link #readSequential}. At most a
+	 * few frames per worker are in flight, which bounds the memory held by
+	 * decoded frames still waiting for their turn.
+	 */
+	static void readParallel(List<File> files, UViewIndex index, Region region,
+	                         FrameSink sink) {
+		final int total    = files.size();
+		final int nThreads = Math.min(Runtime.getRuntime().availableProcessors(), total);
+		final int window   = 4 * nThreads;
+		final AtomicInteger done = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		Deque<Future<FrameData>> pending = new ArrayDeque<>();
+		int next = 0;
+		try {
+			for (int n = 0; n < total; n++) {
+				while (next < total && next < n + window) {
+					final File f = files.get(next++);
+					pending.add(pool.submit(() -> {
+						long allocated = UViewTimings.threadAllocatedBytes();
+						try {
+							return readDat(f, index, region);
+						} finally {
+							if (allocated >= 0)
+								UViewTimings.add(UViewTimings.Counter.ALLOCATED_BYTES,
+										UViewTimings.threadAllocatedBytes() - allocated);
+							IJ.showProgress(done.incrementAndGet(), total);
+						}
+					}));
+				}
+				File f = files.get(n);
+				FrameData frame;
+				try {
+					frame = pending.poll().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) throw (Error) cause;
+					sink.fail(f, cause);
+					continue;
+				}
+				sink.add(f, frame);
 			}
-			IJ.log("UView Folder Reader: energyIdx=" + energyIdx + " m4bIdx=" + m4bIdx);
-			if (energyIdx < 0 && m4bIdx < 0) {
-				IJ.log("UView Folder Reader: neither 'Energy' nor 'M4b' column found — skipping CSV.");
-				return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("UView Folder Reader: loading interrupted.");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static class VirtualResult {
+		UViewVirtualStack stack;
+		UViewTagTable     table = new UViewTagTable();
+		int skipped;
+	}
+
+	/**
+	 * Reads only the headers of the files and returns a virtual stack that
+	 * decodes the pixels on demand. Files are skipped for the same reasons as
+	 * in eager loading. The slice cache is sized to about an eighth of the heap.
+	 */
+	private static VirtualResult readVirtual(List<File> files, UViewIndex index, Region region,
+	                                         UViewCsvTags csvTags) {
+		VirtualResult vr = new VirtualResult();
+		List<File>        kept    = new ArrayList<>();
+		List<FrameHeader> headers = new ArrayList<>();
+		List<String>      labels  = new ArrayList<>();
+		for (int n = 0; n < files.size(); n++) {
+			IJ.showProgress(n, files.size());
+			File f = files.get(n);
+			try {
+				FrameHeader h = index.header(f);
+				if (!region.fits(h)) {
+					IJ.log("Skipped (different size): " + f.getName());
+					vr.skipped++;
+					continue;
+				}
+				kept.add(f);
+				headers.add(h);
+				labels.add(sliceLabel(f, h.label, csvTags));
+				vr.table.addRow(UViewTagTable.row(h.values, csvTags.values(f.getName())));
+			} catch (Exception e) {
+				IJ.log("Skipped (read error): " + f.getName() + " — " + e.getMessage());
+				vr.skipped++;
 			}
+		}
+		if (kept.isEmpty()) return vr;
+		List<String> names = new ArrayList<>();
+		for (File f : kept) names.add(f.getName());
+		vr.stack = new UViewVirtualStack(region.outWidth, region.outHeight,
+				i -> readPixels(kept.get(i), headers.get(i), region), names, labels,
+				UViewVirtualStack.defaultCacheSlices(region.outWidth, region.outHeight));
+		return vr;
+	}
 
-			int fileIdx = 0;
-			String line;
-			while ((line = br.readLine()) != null && fileIdx < sortedFiles.length) {
-				String[] vals = line.split(delim);
-				Map<String, String> tags = new LinkedHashMap<>();
-				if (energyIdx >= 0 && energyIdx < vals.length)
-					tags.put("Energy (eV)", vals[energyIdx].trim());
-				if (m4bIdx >= 0 && m4bIdx < vals.length)
-					tags.put("M4b", vals[m4bIdx].trim());
-				if (!tags.isEmpty())
-					result.put(sortedFiles[fileIdx].getName(), tags);
-				fileIdx++;
+	/** Slice label: file name, header metadata and the CSV tags if available. */
+	static String sliceLabel(File f, String label,
+	                         UViewCsvTags csvTags) {
+		StringBuilder sb = new StringBuilder(f.getName()).append('\n').append(label);
+		Map<String, String> extra = csvTags.tags(f.getName());
+		if (extra != null)
+			for (Map.Entry<String, String> e : extra.entrySet())
+				sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Slice label of a merged group: the first and last file names, the number
+	 * of frames, and each tag of the first frame. A tag keeps its value if it is
+	 * the same in all frames; numeric values that differ are averaged (keeping
+	 * the unit); other differing values are taken from the first frame.
+	 */
+	static String groupLabel(List<String> names, List<Map<String, String>> tags) {
+		int n = names.size();
+		StringBuilder sb = new StringBuilder(names.get(0));
+		if (n > 1) sb.append(" .. ").append(names.get(n - 1));
+		sb.append('\n').append("Frames=").append(n).append('\n');
+		for (Map.Entry<String, String> e : tags.get(0).entrySet()) {
+			String key   = e.getKey();
+			String first = e.getValue();
+			boolean same = true, numeric = true;
+			double  sum  = 0;
+			for (Map<String, String> t : tags) {
+				String v = t.get(key);
+				if (!first.equals(v)) same = false;
+				Double x = v == null ? null : numberOf(v);
+				if (x == null) numeric = false;
+				else sum += x;
+			}
+			String value = first;
+			if (!same && numeric) {
+				int sp = first.indexOf(' ');
+				value = fmt((float) (sum / n)) + (sp >= 0 ? first.substring(sp) : "");
 			}
-			IJ.log("UView Folder Reader: loaded " + result.size() + " rows from CSV.");
-		} catch (IOException e) {
-			IJ.log("UView Folder Reader: could not read CSV " + csvFile.getName()
-					+ " — " + e.getMessage());
+			sb.append(key).append('=').append(value).append('\n');
 		}
-		return result;
+		return sb.toString();
 	}
 
-	// -------------------------------------------------------------------------
+	/** The number in a tag value such as "4.250" or "0.5000 s", or null if it is not one. */
+	private static Double numberOf(String value) {
+		int sp = value.indexOf(' ');
+		try {
+			return Double.parseDouble(sp >= 0 ? value.substring(0, sp) : value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
 
-	private static class FrameData {
-		int     width, height;
-		short[] pixels;
-		String  label;
+	/**
+	 * How consecutive frames are merged into one 32-bit slice while loading:
+	 * either fixed-size groups, or runs of frames with the same value of a tag.
+	 */
+	static final class Grouping {
+		final int     count;     // frames per group, or 0 to group by tag
+		final String  tag;
+		final boolean sum;       // sum instead of average
+
+		Grouping(int count, String tag, boolean sum) {
+			this.count = count;
+			this.tag   = tag;
+			this.sum   = sum;
+		}
 	}
 
-	private FrameData readDat(File file) throws IOException {
-		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+	/**
+	 * Collects decoded frames into an {@link ImageStack}. Frames whose size differs
+	 * from the first frame, on which the region was resolved, are skipped. With a
+	 * {@link Grouping}, each frame is added into a double accumulator as it arrives
+	 * and dropped, and one 32-bit slice is emitted per group.
+	 */
+	private static class StackAssembler implements FrameSink {
+		final Region   region;
+		final Grouping grouping;
+		final UViewCsvTags csvTags;
+		final UViewTagTable table = new UViewTagTable();
+		ImageStack stack;
+		int skipped;
+
+		// current group
+		double[] acc;   // exact for sums of up to 2^53 counts
+		String  groupKey;
+		final List<String> groupNames = new ArrayList<>();
+		final List<Map<String, String>> groupTags = new ArrayList<>();
+		final List<Map<String, Double>> groupValues = new ArrayList<>();
+
+		StackAssembler(Region region, Grouping grouping,
+		               UViewCsvTags csvTags) {
+			this.region   = region;
+			this.grouping = grouping;
+			this.csvTags  = csvTags;
+		}
 
-			// --- verify magic ---
-			byte[] magic = new byte[MAGIC.length()];
-			f.readFully(magic);
-			if (!new String(magic).startsWith(MAGIC))
-				throw new IOException("Not a UView file");
-
-			// --- file header ---
-			f.seek(20);
-			int UKFH_size    = readUShort(f);
-			int UKFH_version = readUShort(f);
-			// bitsperpixel at 24 — not needed
-
-			f.seek(40);
-			int width  = readUShort(f);
-			int height = readUShort(f);
-
-			int recipeBlockSize = 0;
-			if (UKFH_version >= 7) {
-				f.seek(46);
-				recipeBlockSize = readUShort(f) > 0 ? 128 : 0;
+		@Override
+		public void add(File f, FrameData frame) {
+			if (frame.pixels == null) {
+				IJ.log("Skipped (different size): " + f.getName());
+				skipped++;
+				return;
+			}
+			if (stack == null)
+				stack = new ImageStack(region.outWidth, region.outHeight);
+			Map<String, String> extra = csvTags.tags(f.getName());
+			if (grouping == null) {
+				ShortProcessor sp = new ShortProcessor(region.outWidth, region.outHeight, frame.pixels, null);
+				stack.addSlice(sliceLabel(f, frame.label, csvTags), sp);
+				table.addRow(UViewTagTable.row(frame.values, csvTags.values(f.getName())));
+				return;
 			}
 
-			// --- image header ---
-			long imgHdrStart = UKFH_size + recipeBlockSize;
-			f.seek(imgHdrStart);
-			int  UKIH_size    = readUShort(f);
-			/*version*/         readUShort(f);
-			/*colorlow*/        readUShort(f);
-			/*colorhigh*/       readUShort(f);
-			long UKIH_time    = readLong(f);     // offset 8
-			/*maskx*/           readUShort(f);   // offset 16
-			/*masky*/           readUShort(f);   // offset 18
-			/*rotateMask*/      readUShort(f);   // offset 20
-			int  attachedMarkupSize = readUShort(f); // offset 22
-			/*spin*/            readUShort(f);   // offset 24
-			int  leemdatasize = readUShort(f);   // offset 26
-
-			int markupSize = attachedMarkupSize > 0
-					? 128 * ((attachedMarkupSize / 128) + 1) : 0;
-
-			// --- read image data in one shot ---
-			long imageOffset = f.length() - 2L * width * height;
-			f.seek(imageOffset);
-			byte[] raw = new byte[width * height * 2];
-			f.readFully(raw);
-
-			// vertical flip: swap rows using System.arraycopy, then bulk short conversion
-			int rowBytes = width * 2;
-			byte[] flipped = new byte[raw.length];
-			for (int row = 0; row < height; row++)
-				System.arraycopy(raw, (height - 1 - row) * rowBytes,
-				                 flipped, row * rowBytes, rowBytes);
-
-			short[] pixels = new short[width * height];
-			ByteBuffer.wrap(flipped).order(ByteOrder.LITTLE_ENDIAN)
-			          .asShortBuffer().get(pixels);
-
-			// --- parse LEEM data block for slice label ---
-			Map<String, String> meta = new LinkedHashMap<>();
-			meta.put("Date", formatTime(UKIH_time));
-			if (leemdatasize >= 1) {
-				byte[] leemBlock;
-				if (leemdatasize > 2) {
-					f.seek(imgHdrStart + UKIH_size + markupSize);
-					leemBlock = new byte[leemdatasize];
-					f.readFully(leemBlock);
-				} else {
-					// versions 1 & 2: LEEM data is embedded in the image header at byte 28
-					f.seek(imgHdrStart + 28);
-					leemBlock = new byte[UKIH_size - 28];
-					f.readFully(leemBlock);
+			Map<String, String> tags = new LinkedHashMap<>(frame.meta);
+			if (extra != null) tags.putAll(extra);
+			String key = grouping.tag != null ? tags.get(grouping.tag) : null;
+			boolean untagged = grouping.count == 0 && key == null;
+			if (untagged) {
+				// a frame without the tag is a group of its own
+				IJ.log("UView Folder Reader: " + f.getName() + " has no tag \"" + grouping.tag
+						+ "\"; kept as a slice of its own.");
+			}
+			boolean full = grouping.count > 0
+					? groupNames.size() == grouping.count
+					: untagged || groupKey == null || !key.equals(groupKey);
+			if (!groupNames.isEmpty() && full)
+				flushGroup();
+
+			if (acc == null)
+				acc = new double[region.outWidth * region.outHeight];
+			short[] p = frame.pixels;
+			for (int i = 0; i < p.length; i++)
+				acc[i] += p[i] & 0xFFFF;
+			groupKey = key;
+			groupNames.add(f.getName());
+			groupTags.add(tags);
+			groupValues.add(UViewTagTable.row(frame.values, csvTags.values(f.getName())));
+		}
+
+		/** Emits the last, possibly incomplete, group. */
+		void finish() {
+			if (!groupNames.isEmpty()) flushGroup();
+		}
+
+		private void flushGroup() {
+			int n = groupNames.size();
+			if (!grouping.sum)
+				for (int i = 0; i < acc.length; i++) acc[i] /= n;
+			float[] pixels = new float[acc.length];
+			for (int i = 0; i < acc.length; i++) pixels[i] = (float) acc[i];
+			FloatProcessor fp = new FloatProcessor(region.outWidth, region.outHeight, pixels);
+			stack.addSlice(groupLabel(groupNames, groupTags), fp);
+			table.addRow(meanValues(groupValues));
+			acc = null;
+			groupNames.clear();
+			groupTags.clear();
+			groupValues.clear();
+		}
+
+		/** Mean of each numeric tag over the frames of a group that have it. */
+		private static Map<String, Double> meanValues(List<Map<String, Double>> rows) {
+			Map<String, double[]> sums = new LinkedHashMap<>();   // {sum, count}
+			for (Map<String, Double> row : rows)
+				for (Map.Entry<String, Double> e : row.entrySet()) {
+					double[] sc = sums.computeIfAbsent(e.getKey(), k -> new double[2]);
+					sc[0] += e.getValue();
+					sc[1]++;
 				}
-				parseLEEM(leemBlock, leemdatasize > 1, meta);
+			Map<String, Double> mean = new LinkedHashMap<>();
+			for (Map.Entry<String, double[]> e : sums.entrySet())
+				mean.put(e.getKey(), e.getValue()[0] / e.getValue()[1]);
+			return mean;
+		}
+
+		@Override
+		public void fail(File f, Throwable e) {
+			IJ.log("Skipped (read error): " + f.getName() + " — " + e.getMessage());
+			skipped++;
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	static class FrameData {
+		int     width, height;        // size of the frame in the file
+		short[] pixels;               // cropped and binned; null if the size does not fit
+		Map<String, String> meta;
+		Map<String, Double> values;
+		String  label;
+	}
+
+	/** Everything known about a .dat file before its pixels are read. */
+	static class FrameHeader {
+		int    width, height;
+		long   pixelOffset;
+		long   time;                  // UKIH_time, Windows FILETIME
+		Map<String, String> meta;     // parsed LEEM tags, including Date
+		Map<String, Double> values;   // numeric LEEM tags, at full precision
+		String label;                 // meta as key=value lines
+	}
+
+	/**
+	 * The part of each frame that is loaded: a crop rectangle (y from the top of
+	 * the image, as displayed) reduced by {@code bin} × {@code bin} averaging.
+	 * A region is resolved against the size of the first frame; frames of any
+	 * other size do not fit it and are skipped.
+	 */
+	static final class Region {
+		final int frameWidth, frameHeight;
+		final int x, y;
+		final int bin;
+		final int outWidth, outHeight;
+
+		private Region(int frameWidth, int frameHeight, int x, int y, int w, int h, int bin) {
+			this.frameWidth  = frameWidth;
+			this.frameHeight = frameHeight;
+			this.x           = x;
+			this.y           = y;
+			this.bin         = bin;
+			this.outWidth    = w / bin;
+			this.outHeight   = h / bin;
+		}
+
+		/** The whole frame, unbinned. */
+		static Region full(int frameWidth, int frameHeight) {
+			return new Region(frameWidth, frameHeight, 0, 0, frameWidth, frameHeight, 1);
+		}
+
+		/**
+		 * @param crop {x, y, width, height}, or null for the full frame; clipped to the frame
+		 * @throws IllegalArgumentException if nothing of the frame is left
+		 */
+		static Region of(int frameWidth, int frameHeight, int[] crop, int bin) {
+			int x = 0, y = 0, w = frameWidth, h = frameHeight;
+			if (crop != null) {
+				x = Math.max(0, crop[0]);
+				y = Math.max(0, crop[1]);
+				w = Math.min(crop[0] + crop[2], frameWidth)  - x;
+				h = Math.min(crop[1] + crop[3], frameHeight) - y;
 			}
+			if (w < bin || h < bin)
+				throw new IllegalArgumentException("The crop rectangle is outside the "
+						+ frameWidth + "x" + frameHeight + " frame or smaller than the binning.");
+			return new Region(frameWidth, frameHeight, x, y, w, h, bin);
+		}
 
-			StringBuilder sb = new StringBuilder();
-			for (Map.Entry<String, String> e : meta.entrySet())
-				sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		boolean fits(FrameHeader h) {
+			return h.width == frameWidth && h.height == frameHeight;
+		}
+	}
 
+	/**
+	 * Reads a whole frame. The header is taken from {@code index} when it is up
+	 * to date there, so that only the pixels are read from the file; otherwise
+	 * it is parsed and added to the index. The pixels are left null when the
+	 * frame does not fit {@code region}.
+	 */
+	static FrameData readDat(File file, UViewIndex index, Region region) throws IOException {
+		FrameHeader cached = index.lookup(file);
+		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+			FrameHeader h = cached;
+			if (h == null) {
+				h = readHeader(f);
+				index.put(file, h);
+			}
 			FrameData fd = new FrameData();
-			fd.width  = width;
-			fd.height = height;
-			fd.pixels = pixels;
-			fd.label  = sb.toString();
+			fd.width  = h.width;
+			fd.height = h.height;
+			fd.pixels = region.fits(h) ? readPixels(f, h, region) : null;
+			fd.meta   = h.meta;
+			fd.values = h.values;
+			fd.label  = h.label;
 			return fd;
 		}
 	}
 
-	private static void parseLEEM(byte[] block, boolean readAveragingBytes,
-	                               Map<String, String> meta) {
-		int i = 0;
-		while (i < block.length) {
-			int rawTag = block[i++] & 0xFF;
-			if (rawTag == 0xFF) break;
-			int tag = rawTag & 0x7F; // strip "hidden" bit
-
-			switch (tag) {
-			case 16:
-				i++;
-				break;
-			case 100: {
-				float x = getFloat(block, i); i += 4;
-				float y = getFloat(block, i); i += 4;
-				meta.put("MicrometerX", fmt(x));
-				meta.put("MicrometerY", fmt(y));
-				break;
-			}
-			case 101: {
-				int end = indexOf0(block, i);
-				meta.put("FOV", new String(block, i, end - i));
-				i = end + 1;
-				break;
-			}
-			case 102:
-				meta.put("Varian1", fmt(getFloat(block, i))); i += 4; break;
-			case 103:
-				meta.put("Varian2", fmt(getFloat(block, i))); i += 4; break;
-			case 104: {
-				meta.put("CameraExposure", fmt(getFloat(block, i)) + " s"); i += 4;
-				if (readAveragingBytes) i += 2; // B1, B2
-				break;
-			}
-			case 105: {
-				int end = indexOf0(block, i);
-				String title = new String(block, i, end - i).trim();
-				if (!title.isEmpty()) meta.put("Title", title);
-				i = end + 1;
-				break;
+	/** Parses the header and LEEM block of {@code file} without touching its pixels. */
+	static FrameHeader readHeader(File file) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+			return readHeader(f);
+		}
+	}
+
+	/** Reads the pixels of {@code file}, whose header was parsed earlier and fits {@code region}. */
+	static short[] readPixels(File file, FrameHeader h, Region region) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+			return readPixels(f, h, region);
+		}
+	}
+
+	private static FrameHeader readHeader(RandomAccessFile f) throws IOException {
+		long t0 = System.nanoTime();
+		UViewLEEMData.Header[] hh = new UViewLEEMData.Header[1];
+		byte[] head = UViewLEEMData.readHead(f, hh);
+		UViewLEEMData.Header uh = hh[0];
+
+		// --- parse LEEM data block for slice label ---
+		Map<String, String> meta   = new LinkedHashMap<>();
+		Map<String, Double> values = new LinkedHashMap<>();
+		meta.put("Date", formatTime(uh.time));
+		UViewLEEMData.decode(head, uh, new UViewLEEMData.TagSink() {
+			@Override
+			public void number(int tag, String key, float value, String unit) {
+				switch (tag) {
+				case 104: case 110: case 115: case 116:
+					meta.put(key, fmt(value) + " " + unit);
+					break;
+				default:
+					key = UViewLEEMData.key(tag, key, unit);
+					meta.put(key, fmt(value));
+				}
+				values.put(key, (double) value);
 			}
-			case 106: case 107: case 108: case 109: {
-				int end1 = indexOf0(block, i);
-				String name = new String(block, i, end1 - i); i = end1 + 1;
-				int end2 = indexOf0(block, i);
-				String units = new String(block, i, end2 - i); i = end2 + 1;
-				meta.put(name + " (" + units + ")", fmt(getFloat(block, i))); i += 4;
-				break;
+
+			@Override
+			public void text(int tag, String key, String value) {
+				if (tag == 105) value = value.trim();
+				if (!value.isEmpty() || tag != 105) meta.put(key, value);
 			}
-			case 110: {
-				int end = indexOf0(block, i);
-				String unit = new String(block, i, end - i); i = end + 1;
-				meta.put("FOVCalibration", fmt(getFloat(block, i)) + " " + unit); i += 4;
-				break;
+		});
+
+		FrameHeader h = new FrameHeader();
+		h.width       = uh.width;
+		h.height      = uh.height;
+		// the image data is always the last 2*w*h bytes of the file
+		h.pixelOffset = f.length() - 2L * uh.width * uh.height;
+		if (h.pixelOffset < uh.headerEnd)
+			throw new IOException("Truncated file");
+		h.time        = uh.time;
+		h.meta        = meta;
+		h.values      = values;
+		h.label       = labelOf(meta);
+		UViewTimings.add(UViewTimings.Counter.HEADERS_PARSED, 1);
+		UViewTimings.add(UViewTimings.Counter.BYTES_READ,     head.length);
+		UViewTimings.add(UViewTimings.Counter.HEADER_NANOS,   System.nanoTime() - t0);
+		return h;
+	}
+
+	/** Formats metadata as the key=value lines used in slice labels. */
+	static String labelOf(Map<String, String> meta) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : meta.entrySet())
+			sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the rows covered by {@code region} with a single positional read on
+	 * the file channel into a per-thread direct buffer, then copies them
+	 * bottom-up (the file stores the image upside down) straight into the
+	 * destination array, cropping and bin-averaging on the way. The scratch
+	 * buffers are reused across frames, so the returned array, allocated at the
+	 * reduced size, is the only per-frame allocation.
+	 */
+	private static short[] readPixels(RandomAccessFile f, FrameHeader h, Region region)
+			throws IOException {
+		int width  = h.width;
+		int bin    = region.bin;
+		int outW   = region.outWidth;
+		int outH   = region.outHeight;
+		int rows   = outH * bin;                          // displayed rows y .. y+rows-1
+		int first  = h.height - region.y - rows;          // first of them in file order
+		int nBytes = 2 * width * rows;
+
+		Scratch s = Scratch.get(nBytes, outW);
+		ByteBuffer buf = s.bytes;
+		long start = h.pixelOffset + 2L * width * first;
+		FileChannel ch = f.getChannel();
+		long t0 = System.nanoTime();
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, start + buf.position()) < 0)
+				throw new EOFException("Truncated image data");
+		}
+		long t1 = System.nanoTime();
+
+		// displayed row y+r is row (rows-1-r) of the buffer
+		short[] pixels = new short[outW * outH];
+		ShortBuffer src = s.shorts;
+		if (bin == 1) {
+			for (int row = 0; row < outH; row++) {
+				src.position((rows - 1 - row) * width + region.x);
+				src.get(pixels, row * outW, outW);
 			}
-			case 111:
-				meta.put("Phi",   fmt(getFloat(block, i))); i += 4;
-				meta.put("Theta", fmt(getFloat(block, i))); i += 4;
-				break;
-			case 115:
-				meta.put("MCPScreenVoltage",  fmt(getFloat(block, i)) + " kV"); i += 4; break;
-			case 116:
-				meta.put("MCPChannelPlate",   fmt(getFloat(block, i)) + " kV"); i += 4; break;
-			default:
-				if (tag < 100) {
-					int end = indexOf0(block, i);
-					String nameAndUnit = new String(block, i, end - i); i = end + 1;
-					float val = getFloat(block, i); i += 4;
-					if (nameAndUnit.length() > 0) {
-						char   unitCode = nameAndUnit.charAt(nameAndUnit.length() - 1);
-						String modName  = nameAndUnit.substring(0, nameAndUnit.length() - 1);
-						String unit     = (unitCode >= '0' && unitCode <= '9')
-								? UNIT_NAMES[unitCode - '0'] : "";
-						String key = unit.isEmpty() ? modName : modName + " (" + unit + ")";
-						meta.put(key, fmt(val));
-					}
-				}
-				break;
+			countRead(nBytes, t0, t1);
+			return pixels;
+		}
+		int[] acc  = s.acc;
+		int   area = bin * bin;
+		for (int row = 0; row < outH; row++) {
+			Arrays.fill(acc, 0, outW, 0);
+			for (int k = 0; k < bin; k++) {
+				int p = (rows - 1 - (row * bin + k)) * width + region.x;
+				for (int col = 0; col < outW; col++)
+					for (int j = 0; j < bin; j++)
+						acc[col] += src.get(p++) & 0xFFFF;
 			}
+			int o = row * outW;
+			for (int col = 0; col < outW; col++)
+				pixels[o + col] = (short) ((acc[col] + area / 2) / area);
 		}
+		countRead(nBytes, t0, t1);
+		return pixels;
 	}
 
-	// -------------------------------------------------------------------------
-	// Helpers
-	// -------------------------------------------------------------------------
-
-	private static int readUShort(RandomAccessFile f) throws IOException {
-		return (f.read() & 0xFF) | ((f.read() & 0xFF) << 8);
+	/** Adds a frame read between {@code t0} and {@code t1} and copied until now to the counters. */
+	private static void countRead(int nBytes, long t0, long t1) {
+		UViewTimings.add(UViewTimings.Counter.BYTES_READ,   nBytes);
+		UViewTimings.add(UViewTimings.Counter.FRAMES_READ,  1);
+		UViewTimings.add(UViewTimings.Counter.IO_NANOS,     t1 - t0);
+		UViewTimings.add(UViewTimings.Counter.DECODE_NANOS, System.nanoTime() - t1);
 	}
 
-	private static long readLong(RandomAccessFile f) throws IOException {
-		byte[] b = new byte[8];
-		f.readFully(b);
-		return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getLong();
-	}
+	/** Per-thread read buffer and binning accumulator, grown on demand and kept for reuse. */
+	private static final class Scratch {
+		private static final ThreadLocal<Scratch> LOCAL = new ThreadLocal<>();
 
-	private static float getFloat(byte[] buf, int offset) {
-		return ByteBuffer.wrap(buf, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-	}
+		ByteBuffer  bytes;            // little-endian
+		ShortBuffer shorts;           // view of bytes
+		int[]       acc = new int[0];
 
-	private static int indexOf0(byte[] buf, int from) {
-		for (int i = from; i < buf.length; i++)
-			if (buf[i] == 0) return i;
-		return buf.length;
+		/** Returns this thread's buffers, with {@code bytes} cleared and limited to {@code nBytes}. */
+		static Scratch get(int nBytes, int accLength) {
+			Scratch s = LOCAL.get();
+			if (s == null) {
+				s = new Scratch();
+				LOCAL.set(s);
+			}
+			if (s.bytes == null || s.bytes.capacity() < nBytes) {
+				s.bytes  = ByteBuffer.allocateDirect(nBytes).order(ByteOrder.LITTLE_ENDIAN);
+				s.shorts = s.bytes.asShortBuffer();
+			}
+			if (s.acc.length < accLength)
+				s.acc = new int[accLength];
+			s.bytes.clear();
+			s.bytes.limit(nBytes);
+			s.shorts.clear();
+			return s;
+		}
 	}
 
+	// -------------------------------------------------------------------------
+	// Helpers
+	// -------------------------------------------------------------------------
+
 	private static String fmt(float v) {
 		return String.format("%.4g", v);
 	}
 
 	private static String formatTime(long winFileTime) {
-		long ms = (winFileTime - 116444736000000000L) / 10000L;
-		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(ms));
+		return DATE_FORMAT.format(UViewLEEMData.fileTime(winFileTime));
 	}
 }
@@ -0,0 +1,594 @@
+/**
+ * UView_Series_File — converts a folder of UView .dat files into a single series
+ * file (.uvs) and opens such files as an ImageJ stack or virtual stack.
+ *
+ * Reading thousands of small .dat files costs an open, several seeks and a close
+ * per frame, which is slow on network shares and with a cold page cache. A series
+ * file holds all frames of a folder in one file:
+ * <pre>
+ *   header (64 bytes, padded to 4096)
+ *     0  "UVSERIES"
+ *     8  int  version
+ *    12  int  flags (bit 0: frames are compressed)
+ *    16  int  width
+ *    20  int  height
+ *    24  int  number of frames
+ *    28  int  chunk alignment (4096, or 1 if compressed)
+ *    32  long offset of the frame table
+ *   frames, one chunk per frame, from offset 4096 on:
+ *        width*height little-endian uint16, top row first, each starting on a
+ *        4096-byte boundary, or if compressed the Deflate stream of the
+ *        filtered frame (see {@link #filter}), back to back with no alignment
+ *   frame table, nFrames × (long offset, int length)
+ *   metadata, nFrames × (UTF file name, int nTags, nTags × (UTF key, UTF value),
+ *                        int nValues, nValues × (UTF key, double value))
+ * </pre>
+ * The numeric values (from version 2) are the tags at full precision, for the
+ * tag table of the opened stack (see UViewTagTable).
+ * Header, table and metadata are big-endian (java.io.DataOutput). The frames are
+ * stored already flipped, so a slice is a straight copy out of a memory mapping.
+ *
+ * Compression is lossless and meant for archived series, which are mostly dark
+ * background and detector noise. Each row is replaced by the differences between
+ * neighbouring pixels, zigzag-coded so that small differences of either sign
+ * become small numbers, and the low and high bytes are stored as two separate
+ * planes; the high-byte plane is then almost all zeros and Deflate packs it to
+ * nearly nothing. Frames are compressed and decompressed on all CPU cores.
+ *
+ * Appears in Fiji as Plugins > LEEMandPEEM > Convert UView Folder to Series File
+ * and Plugins > LEEMandPEEM > Open UView Series File.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.*;
+import ij.plugin.PlugIn;
+import ij.process.ShortProcessor;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+
+public class UView_Series_File implements PlugIn {
+
+	public static final String EXTENSION = ".uvs";
+
+	private static final byte[] MAGIC       = "UVSERIES".getBytes(StandardCharsets.US_ASCII);
+	private static final int    VERSION     = 2;
+	private static final int    HEADER_SIZE = 64;
+	private static final int    ALIGNMENT   = 4096;
+	/** Frames are mapped in segments of at most this size. */
+	private static final long   SEGMENT     = 1L << 30;
+
+	private static final int    FLAG_DEFLATE = 1;
+
+	private static final String PREF_VIRTUAL  = "LEEMandPEEM.seriesFile.virtual";
+	private static final String PREF_COMPRESS = "LEEMandPEEM.seriesFile.compress";
+
+	@Override
+	public void run(String arg) {
+		if ("open".equals(arg))
+			open();
+		else
+			convert();
+	}
+
+	// -------------------------------------------------------------------------
+
+	private void convert() {
+		DirectoryChooser dc = new DirectoryChooser("Folder with UView .dat files to convert");
+		String dir = dc.getDirectory();
+		if (dir == null) return;
+		File folder = new File(dir);
+		File[] files = folder.listFiles((d, name) -> name.toLowerCase().endsWith(".dat"));
+		if (files == null || files.length == 0) {
+			IJ.error("UView Series File", "No .dat files found in:\n" + dir);
+			return;
+		}
+		Arrays.sort(files);
+
+		SaveDialog sd = new SaveDialog("Save UView series file", folder.getName(), EXTENSION);
+		if (sd.getFileName() == null) return;
+		File out = new File(sd.getDirectory(), sd.getFileName());
+
+		GenericDialog gd = new GenericDialog("Convert UView Folder to Series File");
+		gd.addCheckbox("Compress frames (lossless)", ij.Prefs.get(PREF_COMPRESS, false));
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		boolean compress = gd.getNextBoolean();
+		ij.Prefs.set(PREF_COMPRESS, compress);
+
+		UViewIndex index = UViewIndex.load(folder);
+		UViewCsvTags csvTags = UViewCsvTags.load(folder, files, index);
+		List<File> list = Arrays.asList(files);
+
+		UView_Folder_Reader.Region region = null;
+		for (File f : list) {
+			try {
+				UView_Folder_Reader.FrameHeader h = index.header(f);
+				region = UView_Folder_Reader.Region.full(h.width, h.height);
+				break;
+			} catch (Exception e) {
+				// unreadable; reported while converting
+			}
+		}
+		if (region == null) {
+			IJ.error("UView Series File", "No valid .dat files could be read.");
+			return;
+		}
+
+		IJ.showStatus("Converting " + files.length + " UView files...");
+		long t0 = System.currentTimeMillis();
+		final int[] skipped = {0};
+		try (Writer w = new Writer(out, region.outWidth, region.outHeight, compress)) {
+			UView_Folder_Reader.readParallel(list, index, region, new UView_Folder_Reader.FrameSink() {
+				@Override
+				public void add(File f, UView_Folder_Reader.FrameData frame) {
+					if (frame.pixels == null) {
+						IJ.log("Skipped (different size): " + f.getName());
+						skipped[0]++;
+						return;
+					}
+					Map<String, String> tags = new LinkedHashMap<>(frame.meta);
+					Map<String, String> extra = csvTags.tags(f.getName());
+					if (extra != null) tags.putAll(extra);
+					try {
+						w.add(f.getName(), tags, UViewTagTable.row(frame.values, csvTags.values(f.getName())), frame.pixels);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+
+				@Override
+				public void fail(File f, Throwable e) {
+					IJ.log("Skipped (read error): " + f.getName() + " — " + e.getMessage());
+					skipped[0]++;
+				}
+			});
+		} catch (IOException | UncheckedIOException e) {
+			out.delete();
+			IJ.error("UView Series File", "Could not write " + out.getName() + ":\n" + e.getMessage());
+			return;
+		} finally {
+			index.save();
+			IJ.showProgress(1.0);
+			IJ.showStatus("");
+		}
+		IJ.log("UView Series File: wrote " + (files.length - skipped[0]) + " frames to "
+				+ out.getAbsolutePath() + " (" + (out.length() >> 20) + " MB) in "
+				+ (System.currentTimeMillis() - t0) + " ms"
+				+ (skipped[0] > 0 ? " (skipped " + skipped[0] + ")" : "") + ".");
+	}
+
+	private void open() {
+		OpenDialog od = new OpenDialog("Open UView series file");
+		if (od.getFileName() == null) return;
+		File file = new File(od.getDirectory(), od.getFileName());
+
+		GenericDialog gd = new GenericDialog("Open UView Series File");
+		gd.addCheckbox("Virtual stack (read frames on demand)", ij.Prefs.get(PREF_VIRTUAL, false));
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		boolean virtual = gd.getNextBoolean();
+		ij.Prefs.set(PREF_VIRTUAL, virtual);
+
+		Reader r;
+		try {
+			r = Reader.open(file);
+		} catch (IOException e) {
+			IJ.error("UView Series File", "Cannot open " + file.getName() + ":\n" + e.getMessage());
+			return;
+		}
+		if (r.size() == 0) {
+			IJ.error("UView Series File", file.getName() + " contains no frames.");
+			return;
+		}
+
+		ImageStack stack;
+		if (virtual) {
+			List<String> labels = new ArrayList<>();
+			for (int i = 0; i < r.size(); i++) labels.add(r.label(i));
+			stack = new UViewVirtualStack(r.width, r.height, r::readFrame, r.names, labels,
+					UViewVirtualStack.defaultCacheSlices(r.width, r.height));
+		} else {
+			stack = new ImageStack(r.width, r.height);
+			try {
+				short[][] frames = r.readAll();
+				for (int i = 0; i < r.size(); i++)
+					stack.addSlice(r.label(i), new ShortProcessor(r.width, r.height, frames[i], null));
+			} catch (IOException e) {
+				IJ.error("UView Series File", "Cannot read " + file.getName() + ":\n" + e.getMessage());
+				return;
+			} finally {
+				IJ.showProgress(1.0);
+			}
+		}
+		String title = file.getName();
+		if (title.endsWith(EXTENSION))
+			title = title.substring(0, title.length() - EXTENSION.length());
+		ImagePlus imp = new ImagePlus(title, stack);
+		if (!r.values.isEmpty() && !r.values.get(0).isEmpty()) {
+			UViewTagTable table = new UViewTagTable();
+			for (Map<String, Double> v : r.values) table.addRow(v);
+			imp.setProperty(UViewTagTable.PROPERTY, table);
+		}
+		imp.show();
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Writes a series file in one streaming pass: frames go straight to disk as
+	 * they are added, and only names and tags are kept until {@link #close}.
+	 * Compressed frames are encoded on a thread pool and written in the order in
+	 * which they were added; they are packed without alignment padding.
+	 */
+	static final class Writer implements Closeable {
+		private final FileChannel ch;
+		private final int width, height;
+		private final boolean compress;
+		private final int alignment;
+		private final List<String> names = new ArrayList<>();
+		private final List<Map<String, String>> tags = new ArrayList<>();
+		private final List<Map<String, Double>> values = new ArrayList<>();
+		private final List<long[]> chunks = new ArrayList<>();   // {offset, length}
+		private final ByteBuffer buf;
+		private long end = ALIGNMENT;
+
+		private final ExecutorService pool;
+		private final ArrayDeque<Future<byte[]>> encoding = new ArrayDeque<>();
+		private final int window;
+
+		Writer(File file, int width, int height, boolean compress) throws IOException {
+			this.ch        = new RandomAccessFile(file, "rw").getChannel();
+			this.width     = width;
+			this.height    = height;
+			this.compress  = compress;
+			this.alignment = compress ? 1 : ALIGNMENT;
+			ch.truncate(0);
+			if (compress) {
+				int nThreads = Runtime.getRuntime().availableProcessors();
+				this.buf    = null;
+				this.pool   = Executors.newFixedThreadPool(nThreads);
+				this.window = 4 * nThreads;
+			} else {
+				this.buf    = ByteBuffer.allocateDirect(2 * width * height).order(ByteOrder.LITTLE_ENDIAN);
+				this.pool   = null;
+				this.window = 0;
+			}
+		}
+
+		/** Appends a frame of width × height pixels, top row first. */
+		void add(String name, Map<String, String> frameTags, Map<String, Double> frameValues,
+		         short[] pixels) throws IOException {
+			names.add(name);
+			tags.add(frameTags);
+			values.add(frameValues);
+			if (!compress) {
+				buf.clear();
+				buf.asShortBuffer().put(pixels);
+				write(buf);
+				return;
+			}
+			encoding.add(pool.submit(() -> deflate(pixels, width, height)));
+			while (encoding.size() > window || (!encoding.isEmpty() && encoding.peek().isDone()))
+				writeNext();
+		}
+
+		private void writeNext() throws IOException {
+			byte[] data;
+			try {
+				data = encoding.remove().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing");
+			} catch (ExecutionException e) {
+				throw new IOException("Cannot compress frame: " + e.getCause(), e.getCause());
+			}
+			write(ByteBuffer.wrap(data));
+		}
+
+		private void write(ByteBuffer data) throws IOException {
+			long offset = (end + alignment - 1) / alignment * alignment;
+			int length = data.remaining();
+			while (data.hasRemaining())
+				ch.write(data, offset + data.position());
+			end = offset + length;
+			chunks.add(new long[] {offset, length});
+		}
+
+		/** Writes the remaining frames, the frame table, metadata and header. */
+		@Override
+		public void close() throws IOException {
+			try {
+				while (!encoding.isEmpty())
+					writeNext();
+
+				long tableOffset = end;
+				ch.position(tableOffset);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+				for (long[] c : chunks) {
+					out.writeLong(c[0]);
+					out.writeInt((int) c[1]);
+				}
+				for (int i = 0; i < names.size(); i++) {
+					out.writeUTF(names.get(i));
+					out.writeInt(tags.get(i).size());
+					for (Map.Entry<String, String> e : tags.get(i).entrySet()) {
+						out.writeUTF(e.getKey());
+						out.writeUTF(e.getValue());
+					}
+					out.writeInt(values.get(i).size());
+					for (Map.Entry<String, Double> e : values.get(i).entrySet()) {
+						out.writeUTF(e.getKey());
+						out.writeDouble(e.getValue());
+					}
+				}
+				out.flush();
+
+				ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+				hdr.put(MAGIC);
+				hdr.putInt(VERSION);
+				hdr.putInt(compress ? FLAG_DEFLATE : 0);
+				hdr.putInt(width);
+				hdr.putInt(height);
+				hdr.putInt(names.size());
+				hdr.putInt(alignment);
+				hdr.putLong(tableOffset);
+				hdr.clear();
+				while (hdr.hasRemaining())
+					ch.write(hdr, hdr.position());
+			} finally {
+				if (pool != null) pool.shutdownNow();
+				ch.close();
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Row-wise delta filter: each pixel is replaced by its difference from the
+	 * pixel to its left, zigzag-coded ((d &lt;&lt; 1) ^ (d &gt;&gt; 15)), and the
+	 * result is split into a plane of low bytes followed by a plane of high bytes.
+	 */
+	static byte[] filter(short[] pixels, int width, int height) {
+		int n = width * height;
+		byte[] out = new byte[2 * n];
+		for (int y = 0, i = 0; y < height; y++) {
+			int prev = 0;
+			for (int x = 0; x < width; x++, i++) {
+				int v = pixels[i] & 0xffff;
+				int d = (short) (v - prev);
+				int z = (d << 1) ^ (d >> 15);
+				out[i]     = (byte) z;
+				out[n + i] = (byte) (z >> 8);
+				prev = v;
+			}
+		}
+		return out;
+	}
+
+	/** Inverse of {@link #filter}. */
+	static void unfilter(byte[] in, short[] pixels, int width, int height) {
+		int n = width * height;
+		for (int y = 0, i = 0; y < height; y++) {
+			int prev = 0;
+			for (int x = 0; x < width; x++, i++) {
+				int z = (in[i] & 0xff) | (in[n + i] & 0xff) << 8;
+				int d = (z >>> 1) ^ -(z & 1);
+				prev = (prev + d) & 0xffff;
+				pixels[i] = (short) prev;
+			}
+		}
+	}
+
+	static byte[] deflate(short[] pixels, int width, int height) {
+		byte[] raw = filter(pixels, width, height);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+			byte[] chunk = new byte[1 << 16];
+			while (!deflater.finished()) {
+				int k = deflater.deflate(chunk);
+				out.write(chunk, 0, k);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static short[] inflate(byte[] data, int width, int height) throws IOException {
+		byte[] raw = new byte[2 * width * height];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			int n = 0;
+			while (n < raw.length) {
+				int k = inflater.inflate(raw, n, raw.length - n);
+				if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new EOFException("Compressed frame is too short");
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed frame: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+		short[] pixels = new short[width * height];
+		unfilter(raw, pixels, width, height);
+		return pixels;
+	}
+
+	/**
+	 * Reads a series file through read-only memory mappings. Frames are mapped in
+	 * segments of up to 1 GB; reading a slice is a copy (or, for compressed files,
+	 * an inflate) out of the mapping, and {@link #readFrame} may be called from
+	 * several threads at once.
+	 */
+	static final class Reader {
+		final int width, height;
+		final boolean compressed;
+		final List<String> names = new ArrayList<>();
+		final List<Map<String, String>> tags = new ArrayList<>();
+		final List<Map<String, Double>> values = new ArrayList<>();   // empty in version 1 files
+		private final long[] offsets;
+		private final int[]  lengths;
+		private final int[]  segmentOf;
+		private final long[] segmentStart;
+		private final MappedByteBuffer[] segments;
+
+		private Reader(int width, int height, boolean compressed, long[] offsets, int[] lengths,
+		               FileChannel ch) throws IOException {
+			this.width      = width;
+			this.height     = height;
+			this.compressed = compressed;
+			this.offsets    = offsets;
+			this.lengths = lengths;
+			int n = offsets.length;
+			segmentOf = new int[n];
+			List<Long> starts = new ArrayList<>();
+			List<Long> ends   = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				long frameEnd = offsets[i] + lengths[i];
+				int k = starts.size() - 1;
+				if (k < 0 || frameEnd - starts.get(k) > SEGMENT) {
+					starts.add(offsets[i]);
+					ends.add(frameEnd);
+					k++;
+				} else {
+					ends.set(k, Math.max(ends.get(k), frameEnd));
+				}
+				segmentOf[i] = k;
+			}
+			segmentStart = new long[starts.size()];
+			segments     = new MappedByteBuffer[starts.size()];
+			for (int k = 0; k < segments.length; k++) {
+				segmentStart[k] = starts.get(k);
+				segments[k] = ch.map(FileChannel.MapMode.READ_ONLY, starts.get(k), ends.get(k) - starts.get(k));
+			}
+		}
+
+		static Reader open(File file) throws IOException {
+			try (FileChannel ch = new RandomAccessFile(file, "r").getChannel()) {
+				ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+				while (hdr.hasRemaining())
+					if (ch.read(hdr, hdr.position()) < 0) throw new EOFException("Truncated header");
+				hdr.flip();
+				byte[] magic = new byte[MAGIC.length];
+				hdr.get(magic);
+				if (!Arrays.equals(magic, MAGIC))
+					throw new IOException("Not a UView series file");
+				int version = hdr.getInt();
+				if (version < 1 || version > VERSION)
+					throw new IOException("Unsupported series file version " + version);
+				int flags   = hdr.getInt();
+				if ((flags & ~FLAG_DEFLATE) != 0)
+					throw new IOException("Unsupported series file flags 0x" + Integer.toHexString(flags));
+				int width   = hdr.getInt();
+				int height  = hdr.getInt();
+				int n       = hdr.getInt();
+				/*align*/     hdr.getInt();
+				long table  = hdr.getLong();
+
+				long[] offsets = new long[n];
+				int[]  lengths = new int[n];
+				ch.position(table);
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(Channels.newInputStream(ch), 1 << 16));
+				for (int i = 0; i < n; i++) {
+					offsets[i] = in.readLong();
+					lengths[i] = in.readInt();
+				}
+				Reader r = new Reader(width, height, (flags & FLAG_DEFLATE) != 0, offsets, lengths, ch);
+				for (int i = 0; i < n; i++) {
+					r.names.add(in.readUTF());
+					int nTags = in.readInt();
+					Map<String, String> t = new LinkedHashMap<>();
+					for (int k = 0; k < nTags; k++)
+						t.put(in.readUTF(), in.readUTF());
+					r.tags.add(t);
+					Map<String, Double> v = new LinkedHashMap<>();
+					if (version >= 2) {
+						int nValues = in.readInt();
+						for (int k = 0; k < nValues; k++)
+							v.put(in.readUTF(), in.readDouble());
+					}
+					r.values.add(v);
+				}
+				return r;
+			}
+		}
+
+		int size() {
+			return offsets.length;
+		}
+
+		/** Slice label in the same format as the UView Folder Reader. */
+		String label(int i) {
+			return names.get(i) + "\n" + UView_Folder_Reader.labelOf(tags.get(i));
+		}
+
+		short[] readFrame(int i) throws IOException {
+			int k = segmentOf[i];
+			ByteBuffer b = segments[k].duplicate();
+			int pos = (int) (offsets[i] - segmentStart[k]);
+			b.position(pos);
+			b.limit(pos + lengths[i]);
+			if (compressed) {
+				byte[] data = new byte[lengths[i]];
+				b.get(data);
+				return inflate(data, width, height);
+			}
+			short[] pixels = new short[width * height];
+			b.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pixels);
+			return pixels;
+		}
+
+		/** Reads all frames, decompressing them on one thread per CPU core. */
+		short[][] readAll() throws IOException {
+			final int n = size();
+			final short[][] frames = new short[n][];
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger done = new AtomicInteger();
+			int nThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n));
+			ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+			List<Future<Void>> workers = new ArrayList<>();
+			for (int t = 0; t < nThreads; t++)
+				workers.add(pool.submit(() -> {
+					for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+						frames[i] = readFrame(i);
+						IJ.showProgress(done.incrementAndGet(), n);
+					}
+					return null;
+				}));
+			try {
+				for (Future<Void> w : workers)
+					w.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading frames");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new IOException(cause);
+			} finally {
+				pool.shutdownNow();
+			}
+			return frames;
+		}
+	}
+}
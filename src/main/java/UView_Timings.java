@@ -0,0 +1,52 @@
+/**
+ * UView_Timings — shows where the time of the last LEEMandPEEM runs went.
+ *
+ * Opens a "UView Timings" table with one row per phase of the last run of each
+ * command (UView Folder Reader, Plot Intensity vs Tag, Process Spectrum, Quick
+ * Normalize): wall time, MB read and MB/s, frames and frames/s, the I/O, flip
+ * and header-parsing time summed over the loading threads, and the bytes
+ * allocated. A second table, "UView Counters", has the totals since Fiji
+ * started (see UViewTimings). The dialog also sets whether every run logs its
+ * summary.
+ *
+ * Appears in Fiji as Plugins > LEEMandPEEM > UView Timings.
+ *
+ * @author Juan de la Figuera
+ */
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.util.List;
+import java.util.Map;
+
+public class UView_Timings implements PlugIn {
+
+	@Override
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("UView Timings");
+		gd.addCheckbox("Log a summary after every run", ij.Prefs.get(UViewTimings.PREF_LOG, false));
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		ij.Prefs.set(UViewTimings.PREF_LOG, gd.getNextBoolean());
+
+		List<UViewTimings> runs = UViewTimings.lastRuns();
+		if (runs.isEmpty()) {
+			IJ.showStatus("UView Timings: no runs timed yet.");
+		} else {
+			ResultsTable rt = new ResultsTable();
+			for (UViewTimings run : runs) run.addTo(rt);
+			rt.show("UView Timings");
+		}
+
+		ResultsTable counters = new ResultsTable();
+		for (Map.Entry<String, Long> e : UViewTimings.counters().entrySet()) {
+			counters.incrementCounter();
+			counters.addValue("Counter", e.getKey());
+			counters.addValue("Value", e.getValue());
+		}
+		counters.show("UView Counters");
+	}
+}
@@ -1,8 +1,10 @@
 /**
- * Scifio-UView plugin. This plugin reads single images from the UKSOFT2000 format. This format is used by the
+ * Scifio-UView plugin. This plugin reads images from the UKSOFT2000 format. This format is used by the
  * Elmitec camera acquisition program for their LEEM/PEEM line of instruments.
  *
  * It is a simple unsigned 16bit binary dump preceded by a header with some experimental parameters and the size.
+ * Files recorded in burst mode hold several images, each with its own image header; these open as a stack
+ * along the time axis, and each plane is read on its own.
  * For the record, it is the same format originally used in a Transputer electronics control unit for Scanning Tunneling
  * Microscopy, from Uwe Knipping (who then moved to Elmitec).
  *
@@ -27,9 +29,9 @@ import io.scif.config.SCIFIOConfig;
 import io.scif.util.FormatTools;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 
 import net.imagej.axis.Axes;
 import net.imglib2.Interval;
@@ -81,6 +83,9 @@ public class UView_reader {
 			@Field(label="offset")
 			private int offset;
 
+			// Offset of the pixel data of each image; null for single-image files
+			private long[] planeOffsets;
+
 			public double getStartVoltage() {
 				return startvoltage;
 			}
@@ -131,6 +136,14 @@ public class UView_reader {
 				this.offset=offset;
 			}
 
+			public long getPlaneOffset(long planeIndex) {
+				return planeOffsets == null ? offset : planeOffsets[(int) planeIndex];
+			}
+
+			public void setPlaneOffsets(long[] planeOffsets) {
+				this.planeOffsets=planeOffsets;
+			}
+
 			@Override
 			public void populateImageMetadata() {
 
@@ -149,6 +162,9 @@ public class UView_reader {
 		}
 
 		public static class Parser extends AbstractParser<Metadata> {
+			private static final DateTimeFormatter DATE_FORMAT =
+					DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss Z").withZone(ZoneId.systemDefault());
+
 			@Override
 			protected void typedParse(final DataHandle<Location> stream,
 					final Metadata meta, final SCIFIOConfig config) throws IOException,
@@ -158,194 +174,90 @@ public class UView_reader {
 				final ImageMetadata iMeta = meta.get(0);
 				stream.setOrder(DataHandle.ByteOrder.LITTLE_ENDIAN);
 				long filelength=stream.length();
-				// Minimum information required to read the file
-				stream.seek(40);
-				int UKFH_width = stream.readUnsignedShort();
-				int UKFH_height= stream.readUnsignedShort();
-				int UKFH_nimages = stream.readUnsignedShort();
-				iMeta.addAxis(Axes.X, UKFH_width);
-				iMeta.addAxis(Axes.Y, UKFH_height);
-				meta.setOffset((int)filelength-2*UKFH_width*UKFH_height); // This only works for a single image!
+				// The file header, image header and LEEM block are read into memory with
+				// one read (two if they are longer than the prefix) and decoded there
+				int n=(int)Math.min(filelength, UViewLEEMData.PREFIX);
+				byte[] head=new byte[n];
+				stream.seek(0);
+				stream.readFully(head);
+				final UViewLEEMData.Header h;
+				try {
+					h=UViewLEEMData.parseHeader(head, n);
+				} catch (IOException e) {
+					throw new FormatException(e.getMessage());
+				}
+
+				iMeta.addAxis(Axes.X, h.width);
+				iMeta.addAxis(Axes.Y, h.height);
+				if (h.nImages > 1) {
+					// Burst files hold several images, each with its own image header,
+					// markup and LEEM blocks, one after the other
+					long[] offsets = planeOffsets(stream, h.imageHeaderStart,
+							h.nImages, h.width, h.height, filelength);
+					iMeta.addAxis(Axes.TIME, offsets.length);
+					iMeta.setPlanarAxisCount(2);
+					meta.setPlaneOffsets(offsets);
+					meta.setOffset((int) offsets[0]);
+					meta.getTable().put("Images", offsets.length);
+				} else {
+					meta.setOffset((int)filelength-2*h.width*h.height);
+				}
 				final MetadataLevel level = config.parserGetLevel();
 				if (level != MetadataLevel.MINIMUM) {
-					// File header, starts with magic string
-					stream.seek(20);
-					int UKFH_size = stream.readUnsignedShort();
-					int UKFH_version = stream.readUnsignedShort();
-					int UKFH_bitsperpixel= stream.readUnsignedShort();
-					if (UKFH_version>7) {
-						int UKFH_camerabitsperpixel=stream.readUnsignedShort();
-						int UKFH_MCPdiameterinpixels=stream.readUnsignedShort();
-						int UKFH_hbinning=stream.readUnsignedByte();
-						int UKFH_vbinning=stream.readUnsignedByte();
+					meta.getTable().put("Date", DATE_FORMAT.format(UViewLEEMData.fileTime(h.time)));
+					if (h.headerEnd > n && h.headerEnd <= filelength) {
+						head=Arrays.copyOf(head, h.headerEnd);
+						stream.readFully(head, n, h.headerEnd - n);
 					}
-					// attachedRecipeSize is always at absolute offset 46 in the file header
-					// (per spec: file header is 104 bytes fixed, attachedRecipeSize at offset 46)
-					int UKFH_attachedrecipesize;
-					if (UKFH_version>6) {
-						stream.seek(46);
-						UKFH_attachedrecipesize=stream.readUnsignedShort();
-					} else {
-						UKFH_attachedrecipesize=0;
-					}
-					// The recipe block on disk is always 128 bytes when present (attachedRecipeSize > 0)
-					int recipeBlockSize = (UKFH_attachedrecipesize > 0) ? 128 : 0;
-					stream.seek(UKFH_size + recipeBlockSize);
-					// Image header
-					int UKIH_size= stream.readUnsignedShort();
-					int UKIH_version= stream.readUnsignedShort();
-					int UKIH_colorlow= stream.readUnsignedShort();
-					int UKIH_colorhigh= stream.readUnsignedShort();
-					long UKIH_time= stream.readLong();
-					DateFormat formatter = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss Z");
-					String UKIH_date=formatter.format(new Date((UKIH_time - 116444736000000000L)/10000L ));
-					meta.getTable().put("Date", UKIH_date);
-					int UKIH_maskx = stream.readUnsignedShort();
-					int UKIH_masky = stream.readUnsignedShort();
-					stream.seek(stream.offset()+2); // skip RotateMask (2 bytes)
-					int UKIH_attachedmarkedsize=stream.readUnsignedShort();
-					int MARKUP_size= (UKIH_attachedmarkedsize > 0) ? 128*((UKIH_attachedmarkedsize/128)+1) : 0;
-					int UKIH_spin = stream.readUnsignedShort();
-					int UKIH_leemdataversion= stream.readUnsignedShort();
-
-					// When LEEMdataVersion > 2 its value IS the size of the external LEEM data block,
-					// located after the markup block. Versions 1 and 2 embed the LEEM data inside
-					// the image header starting at byte 28; the block runs to the end of the header.
-					if (UKIH_leemdataversion >= 1) {
-						int leemBlockSize;
-						if (UKIH_leemdataversion > 2) {
-							stream.seek(UKFH_size + recipeBlockSize + UKIH_size + MARKUP_size);
-							leemBlockSize = UKIH_leemdataversion;
-						} else {
-							stream.seek(UKFH_size + recipeBlockSize + 28);
-							leemBlockSize = UKIH_size - 28;
+					UViewLEEMData.decode(head, h, new UViewLEEMData.TagSink() {
+						@Override
+						public void number(int tag, String key, float value, String unit) {
+							meta.getTable().put(UViewLEEMData.key(tag, key, unit), value);
+							if (tag == 100) {
+								if (key.equals("MicrometerX")) meta.setMicrometerX(value);
+								else meta.setMicrometerY(value);
+							} else if (tag == 110) {
+								meta.getTable().put("FOVCalibrationUnit", unit);
+							}
 						}
-						int i=0;
-						int rawTag;
-						int tag;
-						while (i < leemBlockSize) {
-							rawTag=stream.readUnsignedByte();
-							i++;
-							if (rawTag==0xFF) break;
-							tag = rawTag & 0x7F; // strip "hidden" bit (0x80 = recorded but not shown on image)
-							switch (tag) {
-								case 16:
-									stream.readUnsignedByte();
-									i+=1;
-									break;
-								case 100:
-									float UKLD_micrometerx=stream.readFloat();
-									float UKLD_micrometery=stream.readFloat();
-									meta.setMicrometerX(UKLD_micrometerx);
-									meta.setMicrometerY(UKLD_micrometery);
-									meta.getTable().put("MicrometerX", UKLD_micrometerx);
-									meta.getTable().put("MicrometerY", UKLD_micrometery);
-									i+=8;
-									break;
-								case 101:
-									String UKLD_fov=stream.readCString();
-									meta.getTable().put("FOV", UKLD_fov);
-									i+=UKLD_fov.length()+1;
-									break;
-								case 102:
-									float UKLD_varian0=stream.readFloat();
-									meta.getTable().put("Varian1", UKLD_varian0);
-									i+=4;
-									break;
-								case 103:
-									float UKLD_varian1=stream.readFloat();
-									meta.getTable().put("Varian2", UKLD_varian1);
-									i+=4;
-									break;
-								case 104:
-									float UKLD_camera_exposure=stream.readFloat();
-									meta.getTable().put("CameraExposure", UKLD_camera_exposure);
-									if (UKIH_leemdataversion>1) {
-										stream.readByte();
-										stream.readByte();
-										i+=2;
-									}
-									i+=4;
-									break;
-								case 105:
-									String UKLD_title=stream.readCString();
-									meta.getTable().put("Title", UKLD_title);
-									i+=UKLD_title.length()+1;
-									break;
-								case 106:
-									String UKLD_gauge1=stream.readCString();
-									String UKLD_gauge1units=stream.readCString();
-									float UKLD_gauge1value=stream.readFloat();
-									meta.getTable().put(UKLD_gauge1 + " (" + UKLD_gauge1units + ")", UKLD_gauge1value);
-									i+=UKLD_gauge1.length()+1+UKLD_gauge1units.length()+1+4;
-									break;
-								case 107:
-									String UKLD_gauge2=stream.readCString();
-									String UKLD_gauge2units=stream.readCString();
-									float UKLD_gauge2value=stream.readFloat();
-									meta.getTable().put(UKLD_gauge2 + " (" + UKLD_gauge2units + ")", UKLD_gauge2value);
-									i+=UKLD_gauge2.length()+1+UKLD_gauge2units.length()+1+4;
-									break;
-								case 108:
-									String UKLD_gauge3=stream.readCString();
-									String UKLD_gauge3units=stream.readCString();
-									float UKLD_gauge3value=stream.readFloat();
-									meta.getTable().put(UKLD_gauge3 + " (" + UKLD_gauge3units + ")", UKLD_gauge3value);
-									i+=UKLD_gauge3.length()+1+UKLD_gauge3units.length()+1+4;
-									break;
-								case 108+1:
-									String UKLD_gauge4=stream.readCString();
-									String UKLD_gauge4units=stream.readCString();
-									float UKLD_gauge4value=stream.readFloat();
-									meta.getTable().put(UKLD_gauge4 + " (" + UKLD_gauge4units + ")", UKLD_gauge4value);
-									i+=UKLD_gauge4.length()+1+UKLD_gauge4units.length()+1+4;
-									break;
-								case 110:
-									String UKLD_fovcal=stream.readCString();
-									float UKLD_fovcalvalue=stream.readFloat();
-									meta.getTable().put("FOVCalibration", UKLD_fovcalvalue);
-									meta.getTable().put("FOVCalibrationUnit", UKLD_fovcal);
-									i+=UKLD_fovcal.length()+1+4;
-									break;
-								case 111:
-									float UKLD_phi=stream.readFloat();
-									float UKLD_theta=stream.readFloat();
-									meta.getTable().put("Phi", UKLD_phi);
-									meta.getTable().put("Theta", UKLD_theta);
-									i+=8;
-									break;
-								case 115:
-									float UKLD_MCPscreenvoltage=stream.readFloat();
-									meta.getTable().put("MCPScreenVoltage", UKLD_MCPscreenvoltage);
-									i+=4;
-									break;
-								case 116:
-									float UKLD_MCPchannelplate=stream.readFloat();
-									meta.getTable().put("MCPChannelPlate", UKLD_MCPchannelplate);
-									i+=4;
-									break;
-								default:
-									if (tag<100) {
-										// Format: name + unit_digit(0-9) + 0x00 + float(4)
-										// Unit codes: 0=none,1=V,2=mA,3=A,4=C,5=K,6=mV,7=pA,8=nA,9=uA
-										String nameAndUnit=stream.readCString();
-										float module_reading=stream.readFloat();
-										if (nameAndUnit.length() > 0) {
-											char unitCode=nameAndUnit.charAt(nameAndUnit.length()-1);
-											String modName=nameAndUnit.substring(0, nameAndUnit.length()-1);
-											String[] unitNames={"","V","mA","A","\u00b0C","K","mV","pA","nA","\u00b5A"};
-											String unit=(unitCode>='0' && unitCode<='9') ? unitNames[unitCode-'0'] : "";
-											String key=unit.isEmpty() ? modName : modName+" ("+unit+")";
-											meta.getTable().put(key, module_reading);
-										}
-										i+=nameAndUnit.length()+1+4;
-										break;
-									}
-
-								}
+
+						@Override
+						public void text(int tag, String key, String value) {
+							meta.getTable().put(key, value);
 						}
-					}
+					});
+				}
+			}
+
+			/**
+			 * Walks the images of a multi-image file and returns the offset of the
+			 * pixel data of each one. Images that are cut off at the end of the file
+			 * (an interrupted acquisition) are left out.
+			 */
+			private static long[] planeOffsets(final DataHandle<Location> stream, long pos,
+					int nimages, int width, int height, long filelength) throws IOException,
+			FormatException
+			{
+				final long planeSize = 2L * width * height;
+				long[] offsets = new long[nimages];
+				int n = 0;
+				while (n < nimages && pos + 28 <= filelength) {
+					stream.seek(pos);
+					int UKIH_size = stream.readUnsignedShort();
+					stream.seek(pos + 22);
+					int UKIH_attachedmarkedsize = stream.readUnsignedShort();
+					stream.seek(pos + 26);
+					int UKIH_leemdataversion = stream.readUnsignedShort();
+					int MARKUP_size = (UKIH_attachedmarkedsize > 0) ? 128*((UKIH_attachedmarkedsize/128)+1) : 0;
+					int leemBlockSize = (UKIH_leemdataversion > 2) ? UKIH_leemdataversion : 0;
+					long pixels = pos + UKIH_size + MARKUP_size + leemBlockSize;
+					if (UKIH_size < 28 || pixels + planeSize > filelength) break;
+					offsets[n++] = pixels;
+					pos = pixels + planeSize;
 				}
+				if (n == 0)
+					throw new FormatException("No complete image found in UView file");
+				return Arrays.copyOf(offsets, n);
 			}
 		}
 
@@ -372,6 +284,10 @@ public class UView_reader {
 		}
 
 		public static class Reader extends ByteArrayReader<Metadata> {
+
+			// Reused between planes for reads that are cropped horizontally
+			private byte[] scratch;
+
 			@Override
 			public ByteArrayPlane openPlane(int imageIndex, long planeIndex,
 					ByteArrayPlane plane, Interval bounds,
@@ -385,9 +301,23 @@ public class UView_reader {
 
 				int width=(int)meta.get(imageIndex).getAxisLength(Axes.X);
 				int height=(int)meta.get(imageIndex).getAxisLength(Axes.Y);
-				getHandle().seek(meta.getOffset());
-				for(int i=0;i<height;i++) {
-					getHandle().readFully(buf,(height-1-i)*width*2,width*2); // Need to flip vertically
+				int x0=(int)bounds.min(0), w=(int)bounds.dimension(0);
+				int y0=(int)bounds.min(1), h=(int)bounds.dimension(1);
+				int rowBytes=2*width;
+				// Rows are stored bottom-up, so rows y0..y0+h-1 of the image are the
+				// contiguous file rows height-y0-h..height-y0-1; read them in one go
+				// and flip (and crop horizontally) in memory.
+				long start=meta.getPlaneOffset(planeIndex)+(long)(height-y0-h)*rowBytes;
+				getHandle().seek(start);
+				if (w==width) {
+					getHandle().readFully(buf,0,h*rowBytes);
+					flipRows(buf,h,rowBytes);
+				} else {
+					int span=h*rowBytes;
+					if (scratch==null || scratch.length<span) scratch=new byte[span];
+					getHandle().readFully(scratch,0,span);
+					for (int i=0;i<h;i++)
+						System.arraycopy(scratch,(h-1-i)*rowBytes+2*x0,buf,i*2*w,2*w);
 				}
 				if (meta instanceof HasColorTable) {
 					plane.setColorTable(((HasColorTable) meta).getColorTable(imageIndex,
@@ -397,6 +327,15 @@ public class UView_reader {
 				return plane;
 			}
 
+			private static void flipRows(byte[] buf, int rows, int rowBytes) {
+				byte[] tmp=new byte[rowBytes];
+				for (int top=0, bottom=rows-1; top<bottom; top++, bottom--) {
+					System.arraycopy(buf,top*rowBytes,tmp,0,rowBytes);
+					System.arraycopy(buf,bottom*rowBytes,buf,top*rowBytes,rowBytes);
+					System.arraycopy(tmp,0,buf,bottom*rowBytes,rowBytes);
+				}
+			}
+
 			@Override
 			protected String[] createDomainArray() {
 				String[] domains={FormatTools.EM_DOMAIN};
@@ -0,0 +1,234 @@
+/**
+ * Scifio-UView series plugin. Opens a whole folder of UKSOFT2000 .dat files as one multi-plane dataset,
+ * with one plane per file, so that a series can be used with SCIFIO, ImgLib2 and BigDataViewer.
+ *
+ * The folder is selected through its index file (uview_index.uvx, written by the UView Folder Reader
+ * next to the .dat files). Only the headers are read when the dataset is opened, mostly from the index;
+ * the pixels of a plane are read from its file when SCIFIO asks for it, so with a cell image the series
+ * streams from disk as it is viewed.
+ *
+ * The third axis is "Energy" if the photon energy (from a companion CSV) or the start voltage changes
+ * along the series, and Time otherwise.
+ *
+ * @author Juan de la Figuera
+ */
+
+
+import io.scif.AbstractChecker;
+import io.scif.AbstractFormat;
+import io.scif.AbstractMetadata;
+import io.scif.AbstractParser;
+import io.scif.ByteArrayPlane;
+import io.scif.ByteArrayReader;
+import io.scif.Format;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.config.SCIFIOConfig;
+import io.scif.util.FormatTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Interval;
+
+import org.scijava.io.handle.DataHandle;
+import org.scijava.io.location.FileLocation;
+import org.scijava.io.location.Location;
+import org.scijava.plugin.Plugin;
+
+
+
+public class UView_series_reader {
+
+	@Plugin(type = Format.class)
+
+	public static class SeriesFormat extends AbstractFormat {
+
+		/** Tags that give the energy of a frame, in order of preference. */
+		private static final String[] ENERGY_TAGS = { "Energy (eV)", "Start Voltage (V)" };
+
+		@Override
+		public String getFormatName() {
+			return "UView series";
+		}
+
+		@Override
+		protected String[] makeSuffixArray() {
+			return new String[] { "uvx" };
+		}
+
+		public static class Metadata extends AbstractMetadata {
+
+			private final List<File> files = new ArrayList<>();
+			private final List<UView_Folder_Reader.FrameHeader> headers = new ArrayList<>();
+
+			public int getFileCount() {
+				return files.size();
+			}
+
+			public File getFile(int planeIndex) {
+				return files.get(planeIndex);
+			}
+
+			@Override
+			public void populateImageMetadata() {
+
+				final ImageMetadata iMeta = get(0);
+
+				iMeta.setOrderCertain(true);
+				iMeta.setFalseColor(false);
+				iMeta.setThumbnail(false);
+				iMeta.setPixelType(FormatTools.UINT16);
+				iMeta.setLittleEndian(true);
+
+				iMeta.getTable().putAll(getTable());
+			}
+		}
+
+		public static class Parser extends AbstractParser<Metadata> {
+			@Override
+			protected void typedParse(final DataHandle<Location> stream,
+					final Metadata meta, final SCIFIOConfig config) throws IOException,
+			FormatException
+			{
+				Location loc = stream.get();
+				if (!(loc instanceof FileLocation))
+					throw new FormatException("UView series can only be opened from a local folder");
+				File folder = ((FileLocation) loc).getFile().getAbsoluteFile().getParentFile();
+				File[] files = folder.listFiles((d, name) -> name.toLowerCase().endsWith(".dat"));
+				if (files == null || files.length == 0)
+					throw new FormatException("No .dat files in " + folder);
+				Arrays.sort(files);
+
+				// Frame headers come from the index when it is up to date; new or
+				// rewritten files are parsed and added to it
+				UViewIndex index = UViewIndex.load(folder);
+				UViewCsvTags csvTags = UViewCsvTags.load(folder, files, index);
+				UView_Folder_Reader.FrameHeader first = null;
+				List<Map<String, String>> tags = new ArrayList<>();
+				for (File f : files) {
+					UView_Folder_Reader.FrameHeader h;
+					try {
+						h = index.header(f);
+					} catch (IOException e) {
+						continue;   // not a (complete) UView file
+					}
+					if (first == null) first = h;
+					if (h.width != first.width || h.height != first.height) continue;
+					meta.files.add(f);
+					meta.headers.add(h);
+					Map<String, String> extra = csvTags.tags(f.getName());
+					if (extra == null) {
+						tags.add(h.meta);
+					} else {
+						Map<String, String> t = new LinkedHashMap<>(h.meta);
+						t.putAll(extra);
+						tags.add(t);
+					}
+				}
+				index.save();
+				if (first == null)
+					throw new FormatException("No readable UView files in " + folder);
+
+				meta.createImageMetadata(1);
+				final ImageMetadata iMeta = meta.get(0);
+				iMeta.addAxis(Axes.X, first.width);
+				iMeta.addAxis(Axes.Y, first.height);
+
+				String energyTag = varyingTag(tags);
+				AxisType axis = energyTag != null ? Axes.get("Energy", false) : Axes.TIME;
+				iMeta.addAxis(axis, meta.files.size());
+				iMeta.setPlanarAxisCount(2);
+
+				meta.getTable().put("Folder", folder.getAbsolutePath());
+				meta.getTable().put("Images", meta.files.size());
+				if (energyTag != null) {
+					StringBuilder values = new StringBuilder();
+					for (Map<String, String> t : tags)
+						values.append(values.length() == 0 ? "" : ",").append(t.get(energyTag));
+					meta.getTable().put("Energy tag", energyTag);
+					meta.getTable().put("Energy values", values.toString());
+				}
+			}
+
+			/** The first of {@link #ENERGY_TAGS} whose numeric value changes along the series, or null. */
+			private static String varyingTag(List<Map<String, String>> tags) {
+				for (String tag : ENERGY_TAGS) {
+					Double firstValue = null;
+					for (Map<String, String> t : tags) {
+						String v = t.get(tag);
+						Double x = v == null ? null : UViewTagQuery.leadingNumber(v.trim());
+						if (x == null) break;
+						if (firstValue == null) firstValue = x;
+						else if (!x.equals(firstValue)) return tag;
+					}
+				}
+				return null;
+			}
+		}
+
+		public static class Checker extends AbstractChecker {
+
+			@Override
+			public boolean suffixSufficient() {
+				return false;
+			}
+
+			@Override
+			public boolean suffixNecessary() {
+				return true;
+			}
+
+			@Override
+			public boolean isFormat(final DataHandle<Location> in)
+					throws IOException
+			{
+				final int blockLen = 4;
+				if (!FormatTools.validStream(in, blockLen, false)) return false;
+				in.seek(0);
+				in.setOrder(DataHandle.ByteOrder.BIG_ENDIAN);
+				return in.readInt() == UViewIndex.MAGIC;
+			}
+		}
+
+		public static class Reader extends ByteArrayReader<Metadata> {
+			@Override
+			public ByteArrayPlane openPlane(int imageIndex, long planeIndex,
+					ByteArrayPlane plane, Interval bounds,
+					SCIFIOConfig config) throws FormatException, IOException
+			{
+				final Metadata meta = getMetadata();
+				final byte[] buf = plane.getBytes();
+
+				FormatTools.checkPlaneForReading(meta, imageIndex, planeIndex,
+						buf.length, bounds);
+
+				UView_Folder_Reader.FrameHeader h = meta.headers.get((int) planeIndex);
+				int[] crop = { (int) bounds.min(0), (int) bounds.min(1),
+						(int) bounds.dimension(0), (int) bounds.dimension(1) };
+				// Only the rows inside the bounds are read from the file
+				UView_Folder_Reader.Region region =
+						UView_Folder_Reader.Region.of(h.width, h.height, crop, 1);
+				short[] pixels = UView_Folder_Reader.readPixels(meta.files.get((int) planeIndex), h, region);
+				ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(pixels);
+				return plane;
+			}
+
+			@Override
+			protected String[] createDomainArray() {
+				String[] domains={FormatTools.EM_DOMAIN};
+				return (domains);
+			}
+		}
+	}
+
+}
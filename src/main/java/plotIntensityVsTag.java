@@ -7,31 +7,29 @@
  * along with this program.
  *
  * Plots the mean intensity of each slice in a stack against a numeric value
- * extracted from the slice label (e.g. "Start V (V)=42.0" written by the
- * Uview reader plugin).  An optional formula can be applied to the tag values
+ * from the tag table attached by the UView readers, or else extracted from the
+ * slice label (e.g. "Start V (V)=42.0").  An optional formula can be applied to the tag values
  * (e.g. "350 - x").  If an ROI is active it is respected; otherwise the
  * whole frame is used.
  */
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.Plot;
 import ij.gui.Roi;
 import ij.io.SaveDialog;
-import ij.measure.Measurements;
 import ij.plugin.frame.RoiManager;
-import ij.process.ImageStatistics;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -49,6 +47,9 @@ public class plotIntensityVsTag implements Command {
     private static final String PREF_Y_FORMULA  = "LEEMandPEEM.plotVsTag.yFormula";
     private static final String PREF_Y_LABEL    = "LEEMandPEEM.plotVsTag.yLabel";
     private static final String PREF_SAVE_CSV   = "LEEMandPEEM.plotVsTag.saveCsv";
+    private static final String PREF_PARALLEL   = "LEEMandPEEM.plotVsTag.parallel";
+    private static final String PREF_ROI_GRID   = "LEEMandPEEM.plotVsTag.roiGrid";
+    private static final String PREF_CACHE      = "LEEMandPEEM.plotVsTag.cache";
 
     @Parameter
     private LogService log;
@@ -69,19 +70,19 @@ public class plotIntensityVsTag implements Command {
             return;
         }
 
-        final ImageStack stack = imp.getStack();
-
-        // --- parse numeric tags from the first slice label ---
-        final List<String> tags = numericTagsFromLabel(stack.getSliceLabel(1));
-        if (tags.isEmpty()) {
+        // --- numeric tags: the table attached by the UView readers, or parsed from the labels ---
+        final UViewTimings timings = UViewTimings.start("Plot Intensity vs Tag");
+        final UViewTimings.Phase tagPhase = timings.begin("tags");
+        final UViewTagTable table = UViewTagTable.forImage(imp);
+        final List<String> tags = formulaTags(table);
+        tagPhase.stop();
+        if (tags.size() == 1) {   // "Frame Number" only
             IJ.error("plotIntensityVsTag",
                 "No numeric tags found in the slice labels.\n" +
                 "Open the stack with UView Folder Reader to embed metadata.");
             return;
         }
 
-        tags.add(0, "Frame Number");
-
         final String defaultTag  = tags.get(0);
         final String defaultUnit = unitFromKey(defaultTag);
 
@@ -97,6 +98,9 @@ public class plotIntensityVsTag implements Command {
         final String  prevYFormula = Prefs.get(PREF_Y_FORMULA, "y");
         final String  prevYLabel   = Prefs.get(PREF_Y_LABEL,   "Mean Intensity");
         final boolean prevSaveCsv  = Prefs.get(PREF_SAVE_CSV,  false);
+        final boolean prevParallel = Prefs.get(PREF_PARALLEL,  true);
+        final boolean prevRoiGrid  = Prefs.get(PREF_ROI_GRID,  false);
+        final boolean prevCache    = Prefs.get(PREF_CACHE,     false);
 
         // --- dialog ---
         final GenericDialog gd = new GenericDialog("Plot Intensity vs Tag");
@@ -106,7 +110,12 @@ public class plotIntensityVsTag implements Command {
         gd.addChoice("Y tag (for Y formula, use t)",       yTagOptions.toArray(new String[0]), prevYTag);
         gd.addStringField("Y formula (use y for intensity, t for Y tag)", prevYFormula, 28);
         gd.addStringField("Y axis label",                  prevYLabel, 28);
+        gd.addMessage("Formulas: + - * / ( ), log exp sqrt abs pow min max;\n"
+                + "tags as variables, e.g. " + formulaExample(tags));
         gd.addCheckbox("Save CSV", prevSaveCsv);
+        gd.addCheckbox("Parallel (all cores)", prevParallel);
+        gd.addCheckbox("ROI grid mode (many rectangular ROIs)", prevRoiGrid);
+        gd.addCheckbox("Reuse ROI means of earlier runs", prevCache);
         gd.showDialog();
         if (gd.wasCanceled()) return;
 
@@ -117,6 +126,9 @@ public class plotIntensityVsTag implements Command {
         final String  yFormula  = gd.getNextString().trim();
         final String  yLabel    = gd.getNextString();
         final boolean saveCsv   = gd.getNextBoolean();
+        final boolean parallel  = gd.getNextBoolean();
+        final boolean roiGrid   = gd.getNextBoolean();
+        final boolean cache     = gd.getNextBoolean();
         final String  plotTitle = imp.getTitle();
 
         // --- persist choices for next run ---
@@ -126,20 +138,22 @@ public class plotIntensityVsTag implements Command {
         Prefs.set(PREF_Y_FORMULA, yFormula);
         Prefs.set(PREF_Y_LABEL,   yLabel);
         Prefs.set(PREF_SAVE_CSV,  saveCsv);
-        final String searchKey = tagKey + "=";
+        Prefs.set(PREF_PARALLEL,  parallel);
+        Prefs.set(PREF_ROI_GRID,  roiGrid);
+        Prefs.set(PREF_CACHE,     cache);
         final boolean hasYTag  = !"None".equals(yTagKey);
-        final String ySearchKey = hasYTag ? yTagKey + "=" : null;
 
-        // validate formulas with dummy values before running
+        // compile the formulas once; tags are variables too (Energy_eV, ...)
+        final UViewFormula fx, fy;
         try {
-            evalFormula(xFormula, varsOf("x", 1.0));
-        } catch (Exception e) {
+            fx = compileFormula(xFormula, tags, "x");
+        } catch (IllegalArgumentException e) {
             IJ.error("plotIntensityVsTag", "Invalid X formula: " + e.getMessage());
             return;
         }
         try {
-            evalFormula(yFormula, varsOf("y", 1.0, "t", 1.0));
-        } catch (Exception e) {
+            fy = compileFormula(yFormula, tags, "y", "t");
+        } catch (IllegalArgumentException e) {
             IJ.error("plotIntensityVsTag", "Invalid Y formula: " + e.getMessage());
             return;
         }
@@ -166,44 +180,28 @@ public class plotIntensityVsTag implements Command {
         }
 
         // --- collect data ---
-        final double[]   xValues = new double[n];
-        final double[][] allY    = new double[rois.size()][n];
-        final int savedSlice = imp.getCurrentSlice();
-
-        for (int i = 1; i <= n; i++) {
-            final String label = stack.getSliceLabel(i);
-            final double rawX = extractTagValue(label, searchKey, i, log, tagKey);
-            try {
-                xValues[i - 1] = evalFormula(xFormula, varsOf("x", rawX));
-            } catch (Exception e) {
-                log.warn("Slice " + i + ": X formula evaluation failed, using raw value.");
-                xValues[i - 1] = rawX;
-            }
-
-            final double tVal = hasYTag
-                    ? extractTagValue(label, ySearchKey, i, log, yTagKey)
-                    : 0.0;
-
-            imp.setSliceWithoutUpdate(i);
-            final ij.process.ImageProcessor ip = imp.getProcessor();
-            for (int r = 0; r < rois.size(); r++) {
-                ip.setRoi(rois.get(r));
-                final ImageStatistics stats = ImageStatistics.getStatistics(
-                        ip, Measurements.MEAN, imp.getCalibration());
-                try {
-                    allY[r][i - 1] = evalFormula(yFormula,
-                            varsOf("y", stats.mean, "t", tVal));
-                } catch (Exception e) {
-                    log.warn("Slice " + i + " ROI " + r + ": Y formula failed, using mean.");
-                    allY[r][i - 1] = stats.mean;
-                }
-            }
-            statusService.showProgress(i, n);
-        }
-
-        imp.setSlice(savedSlice);
+        // mean of every ROI on every slice, one pass over the pixels of each slice,
+        // or from the cache if this stack and ROI were measured before
+        final UViewTimings.Phase statsPhase = timings.begin("ROI statistics");
+        final double[][] means = UViewRoiMeans.measure(imp, rois, parallel, roiGrid, cache,
+                i -> statusService.showProgress(i, n));
+        statsPhase.stop();
+        statsPhase.addFrames(n);
+
+        // formulas over whole columns: x = tag value, y = ROI mean, t = Y tag value
+        final UViewTimings.Phase formulaPhase = timings.begin("formulas");
+        final double[]   xValues = evalColumns(fx, tags, table, n, tagColumn(table, tagKey, n));
+        final double[]   tValues = hasYTag ? tagColumn(table, yTagKey, n) : new double[n];
+        final double[][] allY    = new double[rois.size()][];
+        for (int r = 0; r < rois.size(); r++)
+            allY[r] = evalColumns(fy, tags, table, n, means[r], tValues);
+        formulaPhase.stop();
+        warnNonFinite(log, "X formula", xValues);
+        for (int r = 0; r < rois.size(); r++)
+            warnNonFinite(log, "Y formula (" + roiNames.get(r) + ")", allY[r]);
 
         // --- build plot ---
+        final UViewTimings.Phase plotPhase = timings.begin("plot");
         final String[] colors = {"black", "red", "blue", "green", "magenta", "cyan", "orange"};
         final Plot plot = new Plot(plotTitle, xLabel, yLabel);
         for (int r = 0; r < rois.size(); r++) {
@@ -214,6 +212,7 @@ public class plotIntensityVsTag implements Command {
         if (rois.size() > 1)
             plot.addLegend(String.join("\n", roiNames));
         plot.show();
+        plotPhase.stop();
 
         // --- save CSV if requested ---
         if (saveCsv) {
@@ -221,7 +220,8 @@ public class plotIntensityVsTag implements Command {
                     plotTitle + "_plot", ".csv");
             if (sd.getFileName() != null) {
                 final String path = sd.getDirectory() + sd.getFileName();
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+                try (UViewTimings.Phase csvPhase = timings.begin("save CSV");
+                     BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
                     // header
                     bw.write(xLabel);
                     for (String name : roiNames) bw.write("," + name);
@@ -239,34 +239,13 @@ public class plotIntensityVsTag implements Command {
                 }
             }
         }
+        timings.finish();
     }
 
     // -------------------------------------------------------------------------
     // Helpers
     // -------------------------------------------------------------------------
 
-    /**
-     * Parse all key=value lines from a slice label and return the keys whose
-     * values are numeric (parseable as double).
-     */
-    private static List<String> numericTagsFromLabel(final String label) {
-        final List<String> tags = new ArrayList<>();
-        if (label == null) return tags;
-        for (final String line : label.split("\n")) {
-            final int eq = line.indexOf('=');
-            if (eq <= 0) continue;
-            final String key = line.substring(0, eq).trim();
-            final String val = line.substring(eq + 1).trim();
-            try {
-                Double.parseDouble(val);
-                tags.add(key);
-            } catch (NumberFormatException e) {
-                // skip non-numeric entries (e.g. Date)
-            }
-        }
-        return tags;
-    }
-
     /**
      * Extract the unit string from a tag key of the form "Name (unit)".
      * Returns the full key if no parenthesised unit is found.
@@ -281,26 +260,21 @@ public class plotIntensityVsTag implements Command {
     }
 
     /**
-     * Extract the numeric value for searchKey from a slice label,
-     * falling back to the slice index on failure.
-     * If tagKey is "Frame Number" the slice index is returned directly.
+     * The value of a tag in a slice (1-based), falling back to the slice index
+     * if the slice does not have it. "Frame Number" is the slice index.
      */
-    static double extractTagValue(final String label, final String searchKey,
-            final int sliceIndex, final LogService log, final String tagKey) {
+    static double tagValue(final UViewTagTable table, final String tagKey, final int sliceIndex) {
         if ("Frame Number".equals(tagKey)) return sliceIndex;
-        if (label == null) return sliceIndex;
-        final int idx = label.indexOf(searchKey);
-        if (idx < 0) return sliceIndex;
-        final int start = idx + searchKey.length();
-        int end = label.indexOf('\n', start);
-        if (end < 0) end = label.length();
-        try {
-            return Double.parseDouble(label.substring(start, end).trim());
-        } catch (NumberFormatException e) {
-            log.warn("Slice " + sliceIndex + ": cannot parse value for key \""
-                     + tagKey + "\", using slice index as fallback.");
-            return sliceIndex;
-        }
+        final double v = table.get(tagKey, sliceIndex);
+        return Double.isNaN(v) ? sliceIndex : v;
+    }
+
+    /** A tag of the stack under its formula name, for the dialog hint. */
+    private static String formulaExample(final List<String> tags) {
+        for (String tag : tags)
+            if (!"Frame Number".equals(tag) && UViewFormula.identifier(tag) != null)
+                return UViewFormula.identifier(tag) + " for \"" + tag + "\"";
+        return "Frame_Number";
     }
 
     /** Return {@code value} if it is present in {@code list}, otherwise {@code fallback}. */
@@ -308,112 +282,66 @@ public class plotIntensityVsTag implements Command {
         return list.contains(value) ? value : fallback;
     }
 
-    /** Build a variable map from name/value pairs: varsOf("x", 1.0, "y", 2.0, ...). */
-    static Map<String, Double> varsOf(Object... pairs) {
-        final Map<String, Double> m = new HashMap<>();
-        for (int i = 0; i < pairs.length - 1; i += 2)
-            m.put((String) pairs[i], (Double) pairs[i + 1]);
-        return m;
-    }
-
     /**
-     * Evaluate a simple arithmetic formula with named variables supplied via a map.
-     * Supports: +  -  *  /  parentheses  unary minus  numeric literals.
-     * Variables can be any identifier (single letter or word) present in the map.
-     * Examples: "350 - x", "y / t", "(y - 100) / t * 1000"
+     * The tags of a stack as offered in the dialogs and to formulas: "Frame Number"
+     * (the slice index) followed by the tags of {@code table}.
      */
-    static double evalFormula(final String formula, final Map<String, Double> vars) throws Exception {
-        return new ExprParser(formula.trim(), vars).parse();
+    static List<String> formulaTags(final UViewTagTable table) {
+        final List<String> tags = table.tags();
+        tags.add(0, "Frame Number");
+        return tags;
     }
 
-    private static class ExprParser {
-        private final String              expr;
-        private final Map<String, Double> vars;
-        private int pos;
-
-        ExprParser(final String expr, final Map<String, Double> vars) {
-            this.expr = expr;
-            this.vars = vars;
-            this.pos  = 0;
-        }
-
-        double parse() throws Exception {
-            final double result = parseExpr();
-            skipSpaces();
-            if (pos < expr.length())
-                throw new Exception("Unexpected character at position " + pos
-                        + ": '" + expr.charAt(pos) + "'");
-            return result;
-        }
-
-        private double parseExpr() throws Exception {
-            double result = parseTerm();
-            while (true) {
-                skipSpaces();
-                if (pos >= expr.length()) break;
-                final char c = expr.charAt(pos);
-                if      (c == '+') { pos++; result += parseTerm(); }
-                else if (c == '-') { pos++; result -= parseTerm(); }
-                else break;
-            }
-            return result;
+    /**
+     * Compile {@code formula} with the variables {@code fixed} ("x", or "y" and "t")
+     * in the first slots, followed by one slot per tag of {@code tags}, named as
+     * {@link UViewFormula#identifier} gives; a tag whose name clashes with an
+     * earlier variable is not available.
+     */
+    static UViewFormula compileFormula(final String formula, final List<String> tags,
+                                       final String... fixed) {
+        final List<String> names = new ArrayList<>(Arrays.asList(fixed));
+        final Set<String>  seen  = new HashSet<>(names);
+        for (String tag : tags) {
+            final String id = UViewFormula.identifier(tag);
+            names.add(id != null && seen.add(id) ? id : null);
         }
+        return UViewFormula.compile(formula, names);
+    }
 
-        private double parseTerm() throws Exception {
-            double result = parseFactor();
-            while (true) {
-                skipSpaces();
-                if (pos >= expr.length()) break;
-                final char c = expr.charAt(pos);
-                if      (c == '*') { pos++; result *= parseFactor(); }
-                else if (c == '/') { pos++; result /= parseFactor(); }
-                else break;
-            }
-            return result;
+    /**
+     * Evaluate a formula compiled by {@link #compileFormula} for the {@code n}
+     * slices: {@code fixed} are the columns of the fixed variables, the tag
+     * columns are taken from {@code table} (NaN where a slice lacks the tag).
+     */
+    static double[] evalColumns(final UViewFormula formula, final List<String> tags,
+                                final UViewTagTable table, final int n, final double[]... fixed) {
+        final double[][] columns = new double[fixed.length + tags.size()][];
+        System.arraycopy(fixed, 0, columns, 0, fixed.length);
+        for (int k = 0; k < tags.size(); k++) {
+            if (!formula.uses(fixed.length + k)) continue;
+            final String tag = tags.get(k);
+            final double[] col = new double[n];
+            for (int i = 0; i < n; i++)
+                col[i] = "Frame Number".equals(tag) ? i + 1 : table.get(tag, i + 1);
+            columns[fixed.length + k] = col;
         }
+        return formula.eval(columns, n);
+    }
 
-        private double parseFactor() throws Exception {
-            skipSpaces();
-            if (pos >= expr.length()) throw new Exception("Unexpected end of expression");
-            final char c = expr.charAt(pos);
-            if (c == '(') {
-                pos++;
-                final double result = parseExpr();
-                skipSpaces();
-                if (pos >= expr.length() || expr.charAt(pos) != ')')
-                    throw new Exception("Expected closing parenthesis");
-                pos++;
-                return result;
-            }
-            if (c == '-') { pos++; return -parseFactor(); }
-            if (c == '+') { pos++; return  parseFactor(); }
-            if (Character.isLetter(c)) {
-                final int start = pos;
-                while (pos < expr.length() && Character.isLetterOrDigit(expr.charAt(pos))) pos++;
-                final String name = expr.substring(start, pos);
-                if (!vars.containsKey(name))
-                    throw new Exception("Unknown variable: '" + name + "'");
-                return vars.get(name);
-            }
-            if (Character.isDigit(c) || c == '.') {
-                final int start = pos;
-                while (pos < expr.length()) {
-                    final char d = expr.charAt(pos);
-                    if (Character.isDigit(d) || d == '.') { pos++; continue; }
-                    if ((d == 'e' || d == 'E') && pos > start) { pos++; continue; }
-                    if ((d == '+' || d == '-') && pos > start &&
-                            (expr.charAt(pos - 1) == 'e' || expr.charAt(pos - 1) == 'E')) {
-                        pos++; continue;
-                    }
-                    break;
-                }
-                return Double.parseDouble(expr.substring(start, pos));
-            }
-            throw new Exception("Unexpected character: '" + c + "'");
-        }
+    /** The values of {@link #tagValue} for slices 1 to {@code n}. */
+    static double[] tagColumn(final UViewTagTable table, final String tagKey, final int n) {
+        final double[] col = new double[n];
+        for (int i = 0; i < n; i++) col[i] = tagValue(table, tagKey, i + 1);
+        return col;
+    }
 
-        private void skipSpaces() {
-            while (pos < expr.length() && expr.charAt(pos) == ' ') pos++;
-        }
+    /** Log a warning if a formula gave NaN or infinite values. */
+    static void warnNonFinite(final LogService log, final String what, final double[] values) {
+        int bad = 0;
+        for (double v : values) if (Double.isNaN(v) || Double.isInfinite(v)) bad++;
+        if (bad > 0)
+            log.warn(what + " gives NaN or infinite values for " + bad + " of "
+                    + values.length + " slices.");
     }
 }
@@ -62,6 +62,8 @@ public class processSpectrum implements Command {
             return;
         }
 
+        final UViewTimings timings = UViewTimings.start("Process Spectrum");
+        final UViewTimings.Phase readPhase = timings.begin("read plot");
         final Plot plot = pw.getPlot();
         final ResultsTable rt = plot.getResultsTable();
         if (rt == null || rt.size() == 0) {
@@ -94,6 +96,8 @@ public class processSpectrum implements Command {
             final String label = plot.getPlotObjectLabel(c);
             curveNames[c] = (label != null && !label.isEmpty()) ? label : headings[c + 1];
         }
+        readPhase.stop();
+        readPhase.addFrames(xValues.length);
 
         final double xFirst = xValues[0];
         final double xLast  = xValues[xValues.length - 1];
@@ -139,6 +143,7 @@ public class processSpectrum implements Command {
         if (nCurves >= 2) Prefs.set(PREF_DIFFERENCE, doDiff);
 
         // --- apply operations (average over 5 nearest points for robustness) ---
+        final UViewTimings.Phase processPhase = timings.begin("process");
         final int preIdx  = closestIndex(xValues, preEdge);
         final int postIdx = closestIndex(xValues, postEdge);
 
@@ -179,7 +184,10 @@ public class processSpectrum implements Command {
         else if (doSubtract) yLabel = "Intensity (bg subtracted)";
         else                 yLabel = plot.getLabel('y');
 
+        processPhase.stop();
+
         // --- show new plot ---
+        final UViewTimings.Phase plotPhase = timings.begin("plot");
         final String[] colors = {"black", "red", "blue", "green", "magenta", "cyan", "orange"};
         final String title = pw.getTitle().replaceFirst(" \\(processed.*\\)$", "")
                 + " (processed)";
@@ -192,6 +200,7 @@ public class processSpectrum implements Command {
         if (outY.size() > 1)
             out.addLegend(String.join("\n", outNames));
         out.show();
+        plotPhase.stop();
 
         // --- save CSV if requested ---
         if (saveCsv) {
@@ -199,7 +208,8 @@ public class processSpectrum implements Command {
                     title, ".csv");
             if (sd.getFileName() != null) {
                 final String path = sd.getDirectory() + sd.getFileName();
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+                try (UViewTimings.Phase csvPhase = timings.begin("save CSV");
+                     BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
                     bw.write(xHeading);
                     for (String name : outNames) bw.write("," + name);
                     bw.newLine();
@@ -214,6 +224,7 @@ public class processSpectrum implements Command {
                 }
             }
         }
+        timings.finish();
     }
 
     // -------------------------------------------------------------------------
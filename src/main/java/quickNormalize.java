@@ -14,13 +14,10 @@
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.Prefs;
 import ij.gui.Plot;
 import ij.gui.Roi;
-import ij.measure.Measurements;
 import ij.plugin.frame.RoiManager;
-import ij.process.ImageStatistics;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -51,7 +48,6 @@ public class quickNormalize implements Command {
         if (n < 2) {
             IJ.error("Quick Normalize", "A stack with at least 2 slices is required."); return;
         }
-        final ImageStack stack = imp.getStack();
 
         // ── read plotIntensityVsTag Prefs ─────────────────────────────────
         final String tagKey   = Prefs.get("LEEMandPEEM.plotVsTag.xTag",     "Frame Number");
@@ -60,19 +56,26 @@ public class quickNormalize implements Command {
         final String yTagKey  = Prefs.get("LEEMandPEEM.plotVsTag.yTag",     "None");
         final String yFormula = Prefs.get("LEEMandPEEM.plotVsTag.yFormula", "y");
         final String yLabel   = Prefs.get("LEEMandPEEM.plotVsTag.yLabel",   "Mean Intensity");
+        final boolean parallel = Prefs.get("LEEMandPEEM.plotVsTag.parallel", true);
+        final boolean roiGrid  = Prefs.get("LEEMandPEEM.plotVsTag.roiGrid",  false);
+        final boolean cache    = Prefs.get("LEEMandPEEM.plotVsTag.cache",    false);
 
-        final String  searchKey  = tagKey + "=";
         final boolean hasYTag    = !"None".equals(yTagKey);
-        final String  ySearchKey = hasYTag ? yTagKey + "=" : null;
-
-        // validate formulas
-        try { plotIntensityVsTag.evalFormula(xFormula, plotIntensityVsTag.varsOf("x", 1.0)); }
-        catch (Exception e) {
+        final UViewTimings timings = UViewTimings.start("Quick Normalize");
+        final UViewTimings.Phase tagPhase = timings.begin("tags");
+        final UViewTagTable table = UViewTagTable.forImage(imp);
+        tagPhase.stop();
+
+        // compile formulas
+        final List<String> tags = plotIntensityVsTag.formulaTags(table);
+        final UViewFormula fx, fy;
+        try { fx = plotIntensityVsTag.compileFormula(xFormula, tags, "x"); }
+        catch (IllegalArgumentException e) {
             IJ.error("Quick Normalize", "Stored X formula is invalid: " + e.getMessage()
                     + "\nRun 'Plot Intensity vs Tag' to reconfigure."); return;
         }
-        try { plotIntensityVsTag.evalFormula(yFormula, plotIntensityVsTag.varsOf("y", 1.0, "t", 1.0)); }
-        catch (Exception e) {
+        try { fy = plotIntensityVsTag.compileFormula(yFormula, tags, "y", "t"); }
+        catch (IllegalArgumentException e) {
             IJ.error("Quick Normalize", "Stored Y formula is invalid: " + e.getMessage()
                     + "\nRun 'Plot Intensity vs Tag' to reconfigure."); return;
         }
@@ -98,41 +101,24 @@ public class quickNormalize implements Command {
         }
 
         // ── compute raw X and Y ───────────────────────────────────────────
-        final double[]   xValues = new double[n];
-        final double[][] allY    = new double[rois.size()][n];
-        final int savedSlice = imp.getCurrentSlice();
-
         IJ.showStatus("Quick Normalize: computing intensities…");
-        for (int i = 1; i <= n; i++) {
-            final String label = stack.getSliceLabel(i);
-            final double rawX  = plotIntensityVsTag.extractTagValue(
-                    label, searchKey, i, log, tagKey);
-            try {
-                xValues[i - 1] = plotIntensityVsTag.evalFormula(
-                        xFormula, plotIntensityVsTag.varsOf("x", rawX));
-            } catch (Exception e) {
-                xValues[i - 1] = rawX;
-            }
-
-            final double tVal = hasYTag ? plotIntensityVsTag.extractTagValue(
-                    label, ySearchKey, i, log, yTagKey) : 0.0;
-
-            imp.setSliceWithoutUpdate(i);
-            final ij.process.ImageProcessor ip = imp.getProcessor();
-            for (int r = 0; r < rois.size(); r++) {
-                ip.setRoi(rois.get(r));
-                final ImageStatistics stats = ImageStatistics.getStatistics(
-                        ip, Measurements.MEAN, imp.getCalibration());
-                try {
-                    allY[r][i - 1] = plotIntensityVsTag.evalFormula(
-                            yFormula, plotIntensityVsTag.varsOf("y", stats.mean, "t", tVal));
-                } catch (Exception e) {
-                    allY[r][i - 1] = stats.mean;
-                }
-            }
-            statusService.showProgress(i, n);
-        }
-        imp.setSlice(savedSlice);
+        final UViewTimings.Phase statsPhase = timings.begin("ROI statistics");
+        final double[][] means = UViewRoiMeans.measure(imp, rois, parallel, roiGrid, cache,
+                i -> statusService.showProgress(i, n));
+        statsPhase.stop();
+        statsPhase.addFrames(n);
+
+        final UViewTimings.Phase formulaPhase = timings.begin("formulas");
+        final double[] rawX    = plotIntensityVsTag.tagColumn(table, tagKey, n);
+        final double[] tValues = hasYTag ? plotIntensityVsTag.tagColumn(table, yTagKey, n) : new double[n];
+        final double[] xValues = plotIntensityVsTag.evalColumns(fx, tags, table, n, rawX);
+        final double[][] allY  = new double[rois.size()][];
+        for (int r = 0; r < rois.size(); r++)
+            allY[r] = plotIntensityVsTag.evalColumns(fy, tags, table, n, means[r], tValues);
+        formulaPhase.stop();
+        plotIntensityVsTag.warnNonFinite(log, "X formula", xValues);
+        for (int r = 0; r < rois.size(); r++)
+            plotIntensityVsTag.warnNonFinite(log, "Y formula (" + roiNames.get(r) + ")", allY[r]);
         IJ.showStatus("");
 
         // ── read processSpectrum Prefs ────────────────────────────────────
@@ -148,6 +134,7 @@ public class quickNormalize implements Command {
                 && Prefs.get("LEEMandPEEM.processSpectrum.difference", false);
 
         // ── apply normalization ───────────────────────────────────────────
+        final UViewTimings.Phase normPhase = timings.begin("normalise");
         final int preIdx  = processSpectrum.closestIndex(xValues, preEdge);
         final int postIdx = processSpectrum.closestIndex(xValues, postEdge);
 
@@ -179,7 +166,10 @@ public class quickNormalize implements Command {
         else if (doSubtract)  outYLabel = "Intensity (bg subtracted)";
         else                  outYLabel = yLabel;
 
+        normPhase.stop();
+
         // ── build and show plot ───────────────────────────────────────────
+        final UViewTimings.Phase plotPhase = timings.begin("plot");
         final String[] colors = {"black", "red", "blue", "green", "magenta", "cyan", "orange"};
         final Plot outPlot = new Plot(imp.getTitle() + " (normalised)", xLabel, outYLabel);
         for (int c = 0; c < outY.size(); c++) {
@@ -189,6 +179,8 @@ public class quickNormalize implements Command {
         }
         if (outY.size() > 1) outPlot.addLegend(String.join("\n", outNames));
         outPlot.show();
+        plotPhase.stop();
+        timings.finish();
 
         IJ.log("Quick Normalize: " + imp.getTitle()
                 + " | X=" + tagKey + " | pre=" + String.format("%.3g", preEdge)